@@ -48,6 +48,7 @@ import com.xabber.android.data.extension.vcard.VCardManager;
 import com.xabber.android.data.http.PatreonManager;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.message.MessageManager;
+import com.xabber.android.data.message.MessageOutbox;
 import com.xabber.android.data.message.ReceiptManager;
 import com.xabber.android.data.message.chat.ChatManager;
 import com.xabber.android.data.message.phrase.PhraseManager;
@@ -340,6 +341,7 @@ public class Application extends android.app.Application {
         addManager(PatreonManager.getInstance());
         addManager(MUCManager.getInstance());
         addManager(MessageManager.getInstance());
+        addManager(MessageOutbox.getInstance());
         addManager(ChatManager.getInstance());
         addManager(VCardManager.getInstance());
         addManager(AvatarManager.getInstance());
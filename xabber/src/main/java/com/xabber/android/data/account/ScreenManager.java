@@ -25,6 +25,7 @@ import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.OnCloseListener;
 import com.xabber.android.data.OnInitializedListener;
 import com.xabber.android.data.SettingsManager;
+import com.xabber.android.data.extension.cs.ChatStateManager;
 import com.xabber.android.data.extension.csi.ClientStateManager;
 import com.xabber.android.receiver.GoAwayReceiver;
 import com.xabber.android.receiver.GoXaReceiver;
@@ -106,6 +107,7 @@ public class ScreenManager implements OnInitializedListener, OnCloseListener {
             alarmManager.cancel(goAwayPendingIntent);
             alarmManager.cancel(goXaPendingIntent);
             AccountManager.getInstance().wakeUp();
+            ChatStateManager.getInstance().onScreenOn();
 
             // notify server(s) that client is now active
             ClientStateManager.setActive();
@@ -118,6 +120,7 @@ public class ScreenManager implements OnInitializedListener, OnCloseListener {
             if (goXa >= 0)
                 alarmManager.set(AlarmManager.RTC_WAKEUP, getTime(goXa),
                         goXaPendingIntent);
+            ChatStateManager.getInstance().onScreenOff();
 
             // notify server(s) that client is now inactive
             ClientStateManager.setInactive();
@@ -21,7 +21,6 @@ import com.xabber.android.data.Application;
 import com.xabber.android.data.account.AccountItem;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.account.AccountManager;
-import com.xabber.android.data.connection.listeners.OnPacketListener;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.roster.AccountRosterListener;
 
@@ -38,6 +37,8 @@ import org.jxmpp.jid.EntityFullJid;
 import org.jxmpp.jid.parts.Localpart;
 import org.jxmpp.jid.parts.Resourcepart;
 
+import java.util.Map;
+
 /**
  * Abstract connection.
  *
@@ -76,6 +77,12 @@ public abstract class ConnectionItem {
 
     private ConnectionThread connectionThread;
 
+    /**
+     * Ordered processing of incoming stanzas.
+     */
+    @NonNull
+    private final StanzaDispatcher stanzaDispatcher;
+
     public ConnectionItem(boolean custom,
                           String host, int port, DomainBareJid serverName, Localpart userName,
                           Resourcepart resource, boolean storePassword, String password, String token,
@@ -86,6 +93,7 @@ public abstract class ConnectionItem {
         this.logTag = getClass().getSimpleName() + ": " + account;
         rosterListener = new AccountRosterListener(getAccount());
         connectionListener = new com.xabber.android.data.connection.ConnectionListener(this);
+        stanzaDispatcher = new StanzaDispatcher(logTag);
 
         connectionSettings = new ConnectionSettings(userName,
                 serverName, resource, custom, host, port, password, token,
@@ -131,6 +139,25 @@ public abstract class ConnectionItem {
         return state;
     }
 
+    /**
+     * @return number of incoming stanzas waiting to be processed.
+     */
+    public int getStanzaQueueDepth() {
+        return stanzaDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Writes incoming stanza processing statistics to the log.
+     */
+    public void logStanzaStatistics() {
+        LogManager.i(logTag, "stanza queue depth " + stanzaDispatcher.getQueueDepth()
+                + ", peak " + stanzaDispatcher.getPeakQueueDepth());
+        for (Map.Entry<String, StanzaDispatcher.ListenerStatistics> entry
+                : stanzaDispatcher.getStatistics().entrySet()) {
+            LogManager.i(logTag, entry.getKey() + " " + entry.getValue());
+        }
+    }
+
     /**
      * Returns real full jid, that was assigned while login.
      *
@@ -187,6 +214,7 @@ public abstract class ConnectionItem {
             @Override
             public void run() {
                 LogManager.i(logTag, "disconnect");
+                logStanzaStatistics();
 
                 if (connection.isConnected()) {
                     updateState(ConnectionState.disconnecting);
@@ -294,14 +322,7 @@ public abstract class ConnectionItem {
     private StanzaListener everyStanzaListener = new StanzaListener() {
         @Override
         public void processStanza(final Stanza stanza) throws SmackException.NotConnectedException {
-            Application.getInstance().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    for (OnPacketListener listener : Application.getInstance().getManagers(OnPacketListener.class)) {
-                        listener.onStanza(ConnectionItem.this, stanza);
-                    }
-                }
-            });
+            stanzaDispatcher.dispatch(ConnectionItem.this, stanza);
         }
     };
 
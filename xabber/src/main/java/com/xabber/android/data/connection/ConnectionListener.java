@@ -11,6 +11,7 @@ import com.xabber.android.data.extension.httpfileupload.HttpFileUploadManager;
 import com.xabber.android.data.extension.mam.MamManager;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.message.MessageManager;
+import com.xabber.android.data.message.MessageOutbox;
 import com.xabber.android.data.roster.PresenceManager;
 
 import org.jivesoftware.smack.XMPPConnection;
@@ -69,6 +70,7 @@ class ConnectionListener implements org.jivesoftware.smack.ConnectionListener {
 
         PresenceManager.getInstance().onAuthorized(connectionItem);
         BookmarksManager.getInstance().onAuthorized(connectionItem.getAccount());
+        MessageOutbox.getInstance().onAuthorized(connectionItem, resumed);
 
         Application.getInstance().runOnUiThread(new Runnable() {
             @Override
@@ -0,0 +1,263 @@
+package com.xabber.android.data.connection;
+
+import android.support.annotation.NonNull;
+
+import com.xabber.android.data.Application;
+import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.OnUiPacketListener;
+import com.xabber.android.data.log.LogManager;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches incoming stanzas of one account to the packet listeners.
+ * <p/>
+ * Stanzas are processed in order on the single background thread of the
+ * account. Listeners marked with {@link OnUiPacketListener} are called
+ * from the UI thread afterwards, keeping the same order. Each stanza is
+ * passed only to listeners which declared interest in it.
+ */
+class StanzaDispatcher {
+
+    /**
+     * Time of the listener call to be reported as slow.
+     */
+    private static final long SLOW_LISTENER_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Number of queued stanzas to be reported as congestion.
+     */
+    private static final int QUEUE_DEPTH_WARNING = 500;
+
+    /**
+     * Time for idle dispatch thread to stay alive.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String logTag;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of stanzas waiting for or being processed by background stage.
+     */
+    private final AtomicInteger queueDepth;
+
+    private final AtomicInteger peakQueueDepth;
+
+    /**
+     * Statistics for listener class names.
+     */
+    private final ConcurrentHashMap<String, ListenerStatistics> statistics;
+
+    private StanzaRouter backgroundRouter;
+
+    private StanzaRouter uiRouter;
+
+    StanzaDispatcher(final String logTag) {
+        this.logTag = logTag;
+        queueDepth = new AtomicInteger();
+        peakQueueDepth = new AtomicInteger();
+        statistics = new ConcurrentHashMap<>();
+
+        executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Stanza dispatcher for " + logTag);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits stanza to be processed.
+     * Can be called from any thread.
+     */
+    void dispatch(final ConnectionItem connection, final Stanza stanza) {
+        int depth = queueDepth.incrementAndGet();
+        updatePeakQueueDepth(depth);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processInBackground(connection, stanza);
+                } finally {
+                    queueDepth.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void updatePeakQueueDepth(int depth) {
+        while (true) {
+            int peak = peakQueueDepth.get();
+            if (depth <= peak) {
+                return;
+            }
+            if (peakQueueDepth.compareAndSet(peak, depth)) {
+                if (depth >= QUEUE_DEPTH_WARNING && peak < QUEUE_DEPTH_WARNING) {
+                    LogManager.w(logTag, "Stanza queue depth reached " + depth);
+                }
+                return;
+            }
+        }
+    }
+
+    private void processInBackground(final ConnectionItem connection, final Stanza stanza) {
+        if (backgroundRouter == null) {
+            createRouters(Application.getInstance().getManagers(OnPacketListener.class));
+        }
+
+        for (OnPacketListener listener : backgroundRouter.route(stanza)) {
+            callListener(listener, connection, stanza);
+        }
+
+        final List<OnPacketListener> listeners = uiRouter.route(stanza);
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (OnPacketListener listener : listeners) {
+                    callListener(listener, connection, stanza);
+                }
+            }
+        });
+    }
+
+    private void createRouters(Collection<OnPacketListener> listeners) {
+        List<OnPacketListener> background = new ArrayList<>();
+        List<OnPacketListener> ui = new ArrayList<>();
+        for (OnPacketListener listener : listeners) {
+            if (listener instanceof OnUiPacketListener) {
+                ui.add(listener);
+            } else {
+                background.add(listener);
+            }
+        }
+        uiRouter = new StanzaRouter(ui);
+        backgroundRouter = new StanzaRouter(background);
+    }
+
+    private void callListener(OnPacketListener listener, ConnectionItem connection, Stanza stanza) {
+        long start = System.nanoTime();
+        try {
+            listener.onStanza(connection, stanza);
+        } catch (Exception e) {
+            LogManager.exception(listener, e);
+        }
+        long duration = System.nanoTime() - start;
+
+        String name = listener.getClass().getSimpleName();
+        ListenerStatistics listenerStatistics = statistics.get(name);
+        if (listenerStatistics == null) {
+            listenerStatistics = new ListenerStatistics();
+            ListenerStatistics previous = statistics.putIfAbsent(name, listenerStatistics);
+            if (previous != null) {
+                listenerStatistics = previous;
+            }
+        }
+        listenerStatistics.add(duration);
+
+        if (duration >= SLOW_LISTENER_NANOS) {
+            LogManager.w(logTag, name + " processed " + stanza.getClass().getSimpleName()
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms");
+        }
+    }
+
+    /**
+     * @return number of stanzas waiting for background processing.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return max number of stanzas waited for background processing.
+     */
+    int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * @return snapshot of the statistics for listener class names.
+     */
+    Map<String, ListenerStatistics> getStatistics() {
+        Map<String, ListenerStatistics> result = new HashMap<>();
+        for (Map.Entry<String, ListenerStatistics> entry : statistics.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().copy());
+        }
+        return result;
+    }
+
+    /**
+     * Latency of the listener calls.
+     */
+    static class ListenerStatistics {
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            while (true) {
+                long max = maxNanos.get();
+                if (nanos <= max || maxNanos.compareAndSet(max, nanos)) {
+                    return;
+                }
+            }
+        }
+
+        ListenerStatistics copy() {
+            ListenerStatistics result = new ListenerStatistics();
+            result.count.set(count.get());
+            result.totalNanos.set(totalNanos.get());
+            result.maxNanos.set(maxNanos.get());
+            return result;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getAverageNanos() {
+            long calls = count.get();
+            return calls == 0 ? 0 : totalNanos.get() / calls;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "calls: " + getCount()
+                    + ", avg: " + TimeUnit.NANOSECONDS.toMicros(getAverageNanos()) + " us"
+                    + ", max: " + TimeUnit.NANOSECONDS.toMillis(getMaxNanos()) + " ms";
+        }
+    }
+
+}
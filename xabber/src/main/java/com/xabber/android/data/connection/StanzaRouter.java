@@ -0,0 +1,108 @@
+package com.xabber.android.data.connection;
+
+import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
+
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.Stanza;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routing table from stanza kind and extension namespaces to the interested
+ * packet listeners.
+ * <p/>
+ * Immutable after creation, so it can be used from any thread.
+ */
+class StanzaRouter {
+
+    /**
+     * Listeners in registration order.
+     */
+    private final List<OnPacketListener> listeners;
+
+    /**
+     * Indexes of listeners to receive all stanzas of the kind.
+     */
+    private final Map<PacketInterest.Kind, BitSet> all;
+
+    /**
+     * Indexes of listeners for extension namespaces of the kind.
+     */
+    private final Map<PacketInterest.Kind, Map<String, BitSet>> namespaces;
+
+    StanzaRouter(List<OnPacketListener> listeners) {
+        this.listeners = listeners;
+        all = new EnumMap<>(PacketInterest.Kind.class);
+        namespaces = new EnumMap<>(PacketInterest.Kind.class);
+
+        for (PacketInterest.Kind kind : PacketInterest.Kind.values()) {
+            all.put(kind, new BitSet());
+            namespaces.put(kind, new HashMap<String, BitSet>());
+        }
+
+        for (int index = 0; index < listeners.size(); index++) {
+            PacketInterest interest = listeners.get(index).getPacketInterest();
+            for (PacketInterest.Kind kind : PacketInterest.Kind.values()) {
+                if (interest.isAll(kind)) {
+                    all.get(kind).set(index);
+                }
+                Map<String, BitSet> kindNamespaces = namespaces.get(kind);
+                for (String namespace : interest.getNamespaces(kind)) {
+                    BitSet indexes = kindNamespaces.get(namespace);
+                    if (indexes == null) {
+                        indexes = new BitSet();
+                        kindNamespaces.put(namespace, indexes);
+                    }
+                    indexes.set(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return interested listeners in registration order.
+     */
+    List<OnPacketListener> route(Stanza stanza) {
+        PacketInterest.Kind kind = PacketInterest.Kind.of(stanza);
+        if (kind == null) {
+            return Collections.emptyList();
+        }
+
+        BitSet indexes = all.get(kind);
+        Map<String, BitSet> kindNamespaces = namespaces.get(kind);
+        if (!kindNamespaces.isEmpty()) {
+            BitSet merged = null;
+            for (ExtensionElement extension : stanza.getExtensions()) {
+                BitSet extensionIndexes = kindNamespaces.get(extension.getNamespace());
+                if (extensionIndexes == null) {
+                    continue;
+                }
+                if (merged == null) {
+                    merged = (BitSet) indexes.clone();
+                }
+                merged.or(extensionIndexes);
+            }
+            if (merged != null) {
+                indexes = merged;
+            }
+        }
+
+        if (indexes.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<OnPacketListener> result = new ArrayList<>(indexes.cardinality());
+        for (int index = indexes.nextSetBit(0); index >= 0; index = indexes.nextSetBit(index + 1)) {
+            result.add(listeners.get(index));
+        }
+        return result;
+    }
+
+}
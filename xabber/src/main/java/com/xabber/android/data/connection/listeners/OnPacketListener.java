@@ -21,6 +21,10 @@ import org.jivesoftware.smack.packet.Stanza;
 
 /**
  * Listener for incoming packet.
+ * <p/>
+ * Called from the dispatch thread of the account, so stanzas of one account
+ * are processed in order. Implement {@link OnUiPacketListener} to be called
+ * from the UI thread instead.
  *
  * @author alexander.ivanov
  */
@@ -31,4 +35,10 @@ public interface OnPacketListener extends BaseManagerInterface {
      */
     void onStanza(ConnectionItem connection, Stanza packet);
 
+    /**
+     * @return stanzas to be passed to {@link #onStanza(ConnectionItem, Stanza)}.
+     * Called once on first dispatching.
+     */
+    PacketInterest getPacketInterest();
+
 }
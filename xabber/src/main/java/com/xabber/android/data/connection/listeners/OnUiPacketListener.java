@@ -0,0 +1,14 @@
+package com.xabber.android.data.connection.listeners;
+
+/**
+ * Marks packet listener which must be called from the UI thread.
+ * <p/>
+ * Such listeners form the UI stage of the stanza dispatching and are called
+ * after all background listeners of the account have processed the stanza.
+ * Use it only for cheap listeners of UI thread confined state. Others should
+ * filter and parse stanzas in background and post only the resulting state
+ * changes to the UI thread.
+ */
+public interface OnUiPacketListener extends OnPacketListener {
+
+}
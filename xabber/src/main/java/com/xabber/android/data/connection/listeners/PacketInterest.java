@@ -0,0 +1,104 @@
+package com.xabber.android.data.connection.listeners;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.Stanza;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stanzas the packet listener wants to receive.
+ * <p/>
+ * Listener receives stanza of declared kind either unconditionally or only
+ * if stanza contains extension with one of declared namespaces.
+ */
+public class PacketInterest {
+
+    /**
+     * Kind of the stanza.
+     */
+    public enum Kind {
+
+        message,
+
+        presence,
+
+        iq;
+
+        /**
+         * @return kind of the stanza or <code>null</code> if unknown.
+         */
+        public static Kind of(Stanza stanza) {
+            if (stanza instanceof Message) {
+                return message;
+            } else if (stanza instanceof Presence) {
+                return presence;
+            } else if (stanza instanceof IQ) {
+                return iq;
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Kinds to be received regardless of extensions.
+     */
+    private final Set<Kind> kinds;
+
+    /**
+     * Extension namespaces to be received for kinds.
+     */
+    private final Map<Kind, Set<String>> namespaces;
+
+    public PacketInterest() {
+        kinds = EnumSet.noneOf(Kind.class);
+        namespaces = new EnumMap<>(Kind.class);
+    }
+
+    /**
+     * Requests all stanzas of the kind.
+     */
+    public PacketInterest all(Kind kind) {
+        kinds.add(kind);
+        return this;
+    }
+
+    /**
+     * Requests stanzas of the kind with extension in the namespace.
+     */
+    public PacketInterest namespace(Kind kind, String namespace) {
+        Set<String> set = namespaces.get(kind);
+        if (set == null) {
+            set = new HashSet<>();
+            namespaces.put(kind, set);
+        }
+        set.add(namespace);
+        return this;
+    }
+
+    /**
+     * @return whether all stanzas of the kind are requested.
+     */
+    public boolean isAll(Kind kind) {
+        return kinds.contains(kind);
+    }
+
+    /**
+     * @return requested extension namespaces for the kind.
+     */
+    public Set<String> getNamespaces(Kind kind) {
+        Set<String> set = namespaces.get(kind);
+        if (set == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+}
@@ -5,7 +5,9 @@ import android.database.Cursor;
 import android.os.Looper;
 
 import com.xabber.android.data.Application;
+import com.xabber.android.data.database.messagerealm.AccountSyncInfo;
 import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.database.messagerealm.OutboxItem;
 import com.xabber.android.data.database.messagerealm.SyncInfo;
 import com.xabber.android.data.database.sqlite.MessageTable;
 import com.xabber.android.data.entity.AccountJid;
@@ -29,7 +31,7 @@ import io.realm.annotations.RealmModule;
 
 public class MessageDatabaseManager {
     private static final String REALM_MESSAGE_DATABASE_NAME = "xabber.realm";
-    static final int REALM_MESSAGE_DATABASE_VERSION = 15;
+    static final int REALM_MESSAGE_DATABASE_VERSION = 18;
     private final RealmConfiguration realmConfiguration;
 
     private static MessageDatabaseManager instance;
@@ -97,6 +99,9 @@ public class MessageDatabaseManager {
                 .findAllSortedAsync(MessageItem.Fields.TIMESTAMP, Sort.ASCENDING);
     }
 
+    /**
+     * Must be kept in sync with {@link #isChatMessage(MessageItem)}.
+     */
     public static RealmQuery<MessageItem> getChatMessagesQuery(Realm realm, AccountJid accountJid, UserJid userJid) {
         return realm.where(MessageItem.class)
                 .equalTo(MessageItem.Fields.ACCOUNT, accountJid.toString())
@@ -105,6 +110,15 @@ public class MessageDatabaseManager {
                 .isNotEmpty(MessageItem.Fields.TEXT);
     }
 
+    /**
+     * @return whether message of the chat is matched by
+     * {@link #getChatMessagesQuery(Realm, AccountJid, UserJid)}.
+     */
+    public static boolean isChatMessage(MessageItem messageItem) {
+        String text = messageItem.getText();
+        return text != null && !text.isEmpty();
+    }
+
 
     void deleteRealm() {
         Realm realm = getNewBackgroundRealm();
@@ -126,13 +140,25 @@ public class MessageDatabaseManager {
                         .equalTo(SyncInfo.FIELD_ACCOUNT, account.toString())
                         .findAll()
                         .deleteAllFromRealm();
+
+                realm.where(AccountSyncInfo.class)
+                        .equalTo(AccountSyncInfo.FIELD_ACCOUNT, account.toString())
+                        .findAll()
+                        .deleteAllFromRealm();
+
+                realm.where(OutboxItem.class)
+                        .equalTo(OutboxItem.FIELD_ACCOUNT, account.toString())
+                        .findAll()
+                        .deleteAllFromRealm();
             }
         });
         realm.close();
+
+        StanzaIdLocator.getInstance().remove(account);
     }
 
 
-    @RealmModule(classes = {MessageItem.class, SyncInfo.class})
+    @RealmModule(classes = {MessageItem.class, SyncInfo.class, AccountSyncInfo.class, OutboxItem.class})
     static class MessageRealmDatabaseModule {
     }
 
@@ -260,6 +286,31 @@ public class MessageDatabaseManager {
                             oldVersion++;
                         }
 
+                        if (oldVersion == 15) {
+                            schema.create(AccountSyncInfo.class.getSimpleName())
+                                    .addField(AccountSyncInfo.FIELD_ACCOUNT, String.class, FieldAttribute.PRIMARY_KEY)
+                                    .addField(AccountSyncInfo.FIELD_LAST_MESSAGE_MAM_ID, String.class);
+                            oldVersion++;
+                        }
+
+                        if (oldVersion == 16) {
+                            schema.get(MessageItem.class.getSimpleName())
+                                    .addIndex(MessageItem.Fields.STANZA_ID);
+                            oldVersion++;
+                        }
+
+                        if (oldVersion == 17) {
+                            schema.create(OutboxItem.class.getSimpleName())
+                                    .addField(OutboxItem.FIELD_MESSAGE_ID, String.class, FieldAttribute.PRIMARY_KEY)
+                                    .addField(OutboxItem.FIELD_ACCOUNT, String.class, FieldAttribute.INDEXED)
+                                    .addField(OutboxItem.FIELD_USER, String.class)
+                                    .addField(OutboxItem.FIELD_TIMESTAMP, long.class)
+                                    .addField(OutboxItem.FIELD_STATE, String.class)
+                                    .addField(OutboxItem.FIELD_ATTEMPTS, int.class)
+                                    .addField(OutboxItem.FIELD_NEXT_ATTEMPT_TIME, long.class);
+                            oldVersion++;
+                        }
+
                     }
                 })
                 .build();
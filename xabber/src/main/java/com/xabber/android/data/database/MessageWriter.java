@@ -0,0 +1,583 @@
+package com.xabber.android.data.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.xabber.android.data.Application;
+import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.UserJid;
+import com.xabber.android.data.log.LogManager;
+import com.xabber.android.data.message.MessageUpdateEvent;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.realm.Realm;
+import io.realm.RealmQuery;
+import io.realm.RealmResults;
+
+/**
+ * Write-behind storage for message items.
+ * <p/>
+ * Queued changes are collected during short time window or until batch size
+ * is reached and committed in one transaction on the writer thread.
+ * Changes are applied in the order they were queued, so an update of the
+ * message always sees the message saved before. If a change fails, the
+ * transaction is rolled back and the rest of the batch is applied again
+ * without it, so changes can be applied more than once.
+ * <p/>
+ * {@link OnMessagesCommittedListener}s receive copies of the stored messages
+ * after each commit.
+ * <p/>
+ * Flag changes queued with {@link MessageState} are merged per message until
+ * they are applied, and one {@link MessageUpdateEvent} is posted for all
+ * messages changed by the batch.
+ */
+public class MessageWriter {
+
+    private static final String LOG_TAG = MessageWriter.class.getSimpleName();
+
+    /**
+     * Time to wait for more changes after the first one in batch.
+     */
+    private static final long BATCH_WINDOW_MILLIS = 50;
+
+    /**
+     * Max number of changes to be committed in one transaction.
+     */
+    private static final int MAX_BATCH_SIZE = 200;
+
+    private static MessageWriter instance;
+
+    private final BlockingQueue<Operation> queue;
+
+    /**
+     * Queued but not applied flag changes by message keys.
+     */
+    private final Map<String, StateOperation> pendingStates;
+
+    private final Thread thread;
+
+    /**
+     * Number of committed changes.
+     */
+    private long committedCount;
+
+    /**
+     * Time spent in transactions.
+     */
+    private long commitNanos;
+
+    public static synchronized MessageWriter getInstance() {
+        if (instance == null) {
+            instance = new MessageWriter();
+        }
+
+        return instance;
+    }
+
+    private MessageWriter() {
+        queue = new LinkedBlockingQueue<>();
+        pendingStates = new HashMap<>();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Message writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Listener for the result of the queued change.
+     */
+    public interface OnCommittedListener {
+
+        /**
+         * Called from the writer thread.
+         *
+         * @param success whether change was applied and committed.
+         */
+        void onCommitted(boolean success);
+
+    }
+
+    /**
+     * Change to be applied to the stored message.
+     */
+    public interface MessageUpdate {
+
+        /**
+         * Called inside write transaction.
+         * Can be called again if the transaction was rolled back.
+         *
+         * @param messageItem managed message item.
+         */
+        void update(@NonNull MessageItem messageItem);
+
+    }
+
+    /**
+     * Flag changes of the stored message.
+     */
+    public static class MessageState implements MessageUpdate {
+
+        private boolean delivered;
+
+        private boolean acknowledged;
+
+        private boolean error;
+
+        @Nullable
+        private String errorDescription;
+
+        public MessageState setDelivered() {
+            delivered = true;
+            return this;
+        }
+
+        public MessageState setAcknowledged() {
+            acknowledged = true;
+            return this;
+        }
+
+        /**
+         * @param errorDescription <code>null</code> if description shouldn't be changed.
+         */
+        public MessageState setError(@Nullable String errorDescription) {
+            error = true;
+            if (errorDescription != null) {
+                this.errorDescription = errorDescription;
+            }
+            return this;
+        }
+
+        void merge(MessageState state) {
+            delivered |= state.delivered;
+            acknowledged |= state.acknowledged;
+            if (state.error) {
+                setError(state.errorDescription);
+            }
+        }
+
+        @Override
+        public void update(@NonNull MessageItem messageItem) {
+            if (delivered) {
+                messageItem.setDelivered(true);
+            }
+            if (acknowledged) {
+                messageItem.setAcknowledged(true);
+            }
+            if (error) {
+                messageItem.setError(true);
+                if (errorDescription != null) {
+                    messageItem.setErrorDescription(errorDescription);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Queues new or changed message item to be stored.
+     */
+    public void save(MessageItem messageItem) {
+        save(messageItem, null);
+    }
+
+    /**
+     * Queues new or changed message item to be stored.
+     *
+     * @param onCommitted called from the writer thread after message was committed or failed.
+     */
+    public void save(final MessageItem messageItem, @Nullable OnCommittedListener onCommitted) {
+        queue.add(new Operation(onCommitted) {
+            @Override
+            MessageItem apply(Realm realm) {
+                return realm.copyFromRealm(realm.copyToRealmOrUpdate(messageItem));
+            }
+        });
+    }
+
+    /**
+     * Queues change of the stored message with specified unique id.
+     * Nothing will be changed if there is no such message.
+     */
+    public void update(String uniqueId, MessageUpdate update) {
+        update(uniqueId, update, null);
+    }
+
+    /**
+     * Queues change of the stored message with specified unique id.
+     * Nothing will be changed if there is no such message.
+     *
+     * @param onCommitted called from the writer thread after change was committed or failed.
+     */
+    public void update(final String uniqueId, final MessageUpdate update,
+                       @Nullable OnCommittedListener onCommitted) {
+        queue.add(new Operation(onCommitted) {
+            @Override
+            MessageItem apply(Realm realm) {
+                return applyUpdate(realm, realm.where(MessageItem.class)
+                        .equalTo(MessageItem.Fields.UNIQUE_ID, uniqueId), update);
+            }
+        });
+    }
+
+    /**
+     * Queues change of the stored message with specified stanza id.
+     * Recently sent messages are found by unique id from {@link StanzaIdLocator}.
+     * Nothing will be changed if there is no such message.
+     *
+     * @param account can be <code>null</code> to look in all accounts.
+     * @param onCommitted called from the writer thread after change was committed or failed.
+     */
+    public void updateByStanzaId(@Nullable final AccountJid account, final String stanzaId,
+                                 final MessageUpdate update, @Nullable OnCommittedListener onCommitted) {
+        queue.add(new Operation(onCommitted) {
+            @Override
+            MessageItem apply(Realm realm) {
+                return applyUpdate(realm, findByStanzaId(realm, account, stanzaId), update);
+            }
+        });
+    }
+
+    /**
+     * Queues flag changes of the stored message with specified unique id.
+     * Nothing will be changed if there is no such message.
+     */
+    public void updateState(final String uniqueId, MessageState state) {
+        queueState(uniqueId, state, new StateOperation() {
+            @Override
+            MessageItem find(Realm realm) {
+                return realm.where(MessageItem.class)
+                        .equalTo(MessageItem.Fields.UNIQUE_ID, uniqueId)
+                        .findFirst();
+            }
+        });
+    }
+
+    /**
+     * Queues flag changes of the stored message with specified stanza id.
+     * Nothing will be changed if there is no such message.
+     *
+     * @param account can be <code>null</code> to look in all accounts.
+     */
+    public void updateStateByStanzaId(@Nullable final AccountJid account, final String stanzaId,
+                                      MessageState state) {
+        queueState(account + "\n" + stanzaId, state, new StateOperation() {
+            @Override
+            MessageItem find(Realm realm) {
+                return findByStanzaId(realm, account, stanzaId);
+            }
+        });
+    }
+
+    private void queueState(String key, MessageState state, StateOperation operation) {
+        synchronized (pendingStates) {
+            StateOperation pending = pendingStates.get(key);
+            if (pending != null) {
+                pending.state.merge(state);
+                return;
+            }
+            operation.key = key;
+            operation.state.merge(state);
+            pendingStates.put(key, operation);
+        }
+        queue.add(operation);
+    }
+
+    /**
+     * Queues marking all messages of the chat as read.
+     */
+    public void markAsRead(final AccountJid account, final UserJid user) {
+        queue.add(new Operation(null) {
+            @Override
+            MessageItem apply(Realm realm) {
+                RealmResults<MessageItem> unreadMessages = realm.where(MessageItem.class)
+                        .equalTo(MessageItem.Fields.ACCOUNT, account.toString())
+                        .equalTo(MessageItem.Fields.USER, user.toString())
+                        .equalTo(MessageItem.Fields.READ, false)
+                        .findAll();
+
+                for (MessageItem messageItem : new ArrayList<>(unreadMessages)) {
+                    messageItem.setRead(true);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Recently sent messages are found by unique id from {@link StanzaIdLocator}.
+     */
+    @Nullable
+    private static MessageItem findByStanzaId(Realm realm, @Nullable AccountJid account, String stanzaId) {
+        String uniqueId = StanzaIdLocator.getInstance().get(account, stanzaId);
+        if (uniqueId != null) {
+            MessageItem messageItem = realm.where(MessageItem.class)
+                    .equalTo(MessageItem.Fields.UNIQUE_ID, uniqueId)
+                    .equalTo(MessageItem.Fields.STANZA_ID, stanzaId)
+                    .findFirst();
+            if (messageItem != null) {
+                return messageItem;
+            }
+        }
+
+        RealmQuery<MessageItem> query = realm.where(MessageItem.class);
+        if (account != null) {
+            query.equalTo(MessageItem.Fields.ACCOUNT, account.toString());
+        }
+        return query.equalTo(MessageItem.Fields.STANZA_ID, stanzaId).findFirst();
+    }
+
+    /**
+     * @return copy of updated message or <code>null</code> if there is no such message.
+     */
+    @Nullable
+    private static MessageItem applyUpdate(Realm realm, RealmQuery<MessageItem> query,
+                                           MessageUpdate update) {
+        return applyUpdate(realm, query.findFirst(), update);
+    }
+
+    /**
+     * @return copy of updated message or <code>null</code> if there is no such message.
+     */
+    @Nullable
+    private static MessageItem applyUpdate(Realm realm, @Nullable MessageItem messageItem,
+                                           MessageUpdate update) {
+        if (messageItem == null) {
+            return null;
+        }
+        update.update(messageItem);
+        return realm.copyFromRealm(messageItem);
+    }
+
+    /**
+     * Waits until all changes queued before this call are committed.
+     * Must not be called from the writer thread.
+     */
+    public void flush() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        queue.add(new Operation(new OnCommittedListener() {
+            @Override
+            public void onCommitted(boolean success) {
+                latch.countDown();
+            }
+        }) {
+            @Override
+            MessageItem apply(Realm realm) {
+                return null;
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * @return number of messages committed per second of transaction time.
+     */
+    public synchronized long getThroughput() {
+        if (commitNanos == 0) {
+            return 0;
+        }
+        return committedCount * TimeUnit.SECONDS.toNanos(1) / commitNanos;
+    }
+
+    private void loop() {
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        List<Operation> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MILLIS);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long timeout = deadline - System.nanoTime();
+                    if (timeout <= 0) {
+                        queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                        break;
+                    }
+                    Operation operation = queue.poll(timeout, TimeUnit.NANOSECONDS);
+                    if (operation == null) {
+                        break;
+                    }
+                    batch.add(operation);
+                }
+            } catch (InterruptedException e) {
+                LogManager.exception(LOG_TAG, e);
+                continue;
+            }
+
+            commit(realm, batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(Realm realm, List<Operation> batch) {
+        List<MessageItem> messageItems = new ArrayList<>(batch.size());
+        List<MessageItem> changedStates = new ArrayList<>();
+        long start = System.nanoTime();
+        boolean[] failed = new boolean[batch.size()];
+        boolean committed;
+        while (true) {
+            messageItems.clear();
+            changedStates.clear();
+            int failedIndex = apply(realm, batch, failed, messageItems, changedStates);
+            if (failedIndex != -1) {
+                // roll back the writes of the failed change and apply the rest again
+                realm.cancelTransaction();
+                failed[failedIndex] = true;
+                continue;
+            }
+            try {
+                realm.commitTransaction();
+                committed = true;
+            } catch (Exception e) {
+                LogManager.exception(LOG_TAG, e);
+                if (realm.isInTransaction()) {
+                    realm.cancelTransaction();
+                }
+                messageItems.clear();
+                changedStates.clear();
+                committed = false;
+            }
+            break;
+        }
+        long duration = System.nanoTime() - start;
+
+        synchronized (this) {
+            committedCount += batch.size();
+            commitNanos += duration;
+        }
+        LogManager.d(LOG_TAG, "committed " + batch.size() + " changes in "
+                + TimeUnit.NANOSECONDS.toMillis(duration) + " ms, " + getThroughput() + " per second");
+
+        if (!messageItems.isEmpty()) {
+            for (OnMessagesCommittedListener listener
+                    : Application.getInstance().getManagers(OnMessagesCommittedListener.class)) {
+                listener.onMessagesCommitted(messageItems);
+            }
+        }
+
+        if (!changedStates.isEmpty()) {
+            EventBus.getDefault().post(createUpdateEvent(changedStates));
+        }
+
+        for (int index = 0; index < batch.size(); index++) {
+            Operation operation = batch.get(index);
+            if (operation.onCommitted != null) {
+                try {
+                    operation.onCommitted.onCommitted(committed && !failed[index]);
+                } catch (Exception e) {
+                    LogManager.exception(LOG_TAG, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Begins transaction and applies not failed changes of the batch.
+     * Transaction stays open.
+     *
+     * @return index of the change failed to be applied or -1 if all were applied.
+     */
+    private static int apply(Realm realm, List<Operation> batch, boolean[] failed,
+                             List<MessageItem> messageItems, List<MessageItem> changedStates) {
+        realm.beginTransaction();
+        for (int index = 0; index < batch.size(); index++) {
+            if (failed[index]) {
+                continue;
+            }
+            Operation operation = batch.get(index);
+            try {
+                MessageItem messageItem = operation.apply(realm);
+                if (messageItem != null) {
+                    messageItems.add(messageItem);
+                    if (operation instanceof StateOperation) {
+                        changedStates.add(messageItem);
+                    }
+                }
+            } catch (Exception e) {
+                LogManager.exception(LOG_TAG, e);
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return event for the chat or account of all changed messages if they have common one.
+     */
+    private static MessageUpdateEvent createUpdateEvent(List<MessageItem> messageItems) {
+        MessageItem first = messageItems.get(0);
+        AccountJid account = first.getAccount();
+        UserJid user = first.getUser();
+        for (MessageItem messageItem : messageItems) {
+            if (!messageItem.getAccount().equals(account)) {
+                return new MessageUpdateEvent();
+            }
+            if (user != null && !messageItem.getUser().equals(user)) {
+                user = null;
+            }
+        }
+        if (messageItems.size() == 1) {
+            return new MessageUpdateEvent(account, user, first.getUniqueId());
+        }
+        return new MessageUpdateEvent(account, user);
+    }
+
+    private static abstract class Operation {
+
+        @Nullable
+        final OnCommittedListener onCommitted;
+
+        Operation(@Nullable OnCommittedListener onCommitted) {
+            this.onCommitted = onCommitted;
+        }
+
+        /**
+         * @return unmanaged state of the stored message or <code>null</code>.
+         */
+        @Nullable
+        abstract MessageItem apply(Realm realm);
+    }
+
+    /**
+     * Applies merged flag changes of the message.
+     */
+    private abstract class StateOperation extends Operation {
+
+        final MessageState state;
+
+        String key;
+
+        StateOperation() {
+            super(null);
+            state = new MessageState();
+        }
+
+        @Override
+        MessageItem apply(Realm realm) {
+            synchronized (pendingStates) {
+                // can be applied again after rollback, when new changes are already queued
+                if (pendingStates.get(key) == this) {
+                    pendingStates.remove(key);
+                }
+            }
+            return applyUpdate(realm, find(realm), state);
+        }
+
+        @Nullable
+        abstract MessageItem find(Realm realm);
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.xabber.android.data.database;
+
+import com.xabber.android.data.BaseManagerInterface;
+import com.xabber.android.data.database.messagerealm.MessageItem;
+
+import java.util.Collection;
+
+/**
+ * Listener for messages stored by {@link MessageWriter}.
+ */
+public interface OnMessagesCommittedListener extends BaseManagerInterface {
+
+    /**
+     * Called from the writer thread after transaction was committed.
+     *
+     * @param messageItems unmanaged copies of the stored messages in commit order.
+     */
+    void onMessagesCommitted(Collection<MessageItem> messageItems);
+
+}
@@ -0,0 +1,94 @@
+package com.xabber.android.data.database;
+
+import android.support.annotation.Nullable;
+
+import com.xabber.android.data.entity.AccountJid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU map from stanza id of recently sent messages to their unique ids.
+ * <p/>
+ * Lets receipts, errors and MUC echoes find the message by primary key.
+ * Missing entries must be looked up in database.
+ */
+public class StanzaIdLocator {
+
+    /**
+     * Max number of remembered messages.
+     */
+    private static final int MAX_SIZE = 500;
+
+    private static StanzaIdLocator instance;
+
+    private final Map<String, Location> locations;
+
+    public static synchronized StanzaIdLocator getInstance() {
+        if (instance == null) {
+            instance = new StanzaIdLocator();
+        }
+
+        return instance;
+    }
+
+    private StanzaIdLocator() {
+        locations = new LinkedHashMap<String, Location>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Remembers sent message.
+     */
+    public synchronized void put(AccountJid account, @Nullable String stanzaId, String uniqueId) {
+        if (stanzaId == null) {
+            return;
+        }
+        locations.put(stanzaId, new Location(account, uniqueId));
+    }
+
+    /**
+     * @param account can be <code>null</code> to look in all accounts.
+     * @return unique id of the message or <code>null</code> if it is not remembered.
+     */
+    @Nullable
+    public synchronized String get(@Nullable AccountJid account, @Nullable String stanzaId) {
+        if (stanzaId == null) {
+            return null;
+        }
+        Location location = locations.get(stanzaId);
+        if (location == null || (account != null && !account.equals(location.account))) {
+            return null;
+        }
+        return location.uniqueId;
+    }
+
+    /**
+     * Forgets messages of the account.
+     */
+    public synchronized void remove(AccountJid account) {
+        for (Iterator<Location> iterator = locations.values().iterator(); iterator.hasNext(); ) {
+            if (account.equals(iterator.next().account)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Location {
+
+        final AccountJid account;
+
+        final String uniqueId;
+
+        Location(AccountJid account, String uniqueId) {
+            this.account = account;
+            this.uniqueId = uniqueId;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.xabber.android.data.database.messagerealm;
+
+import io.realm.RealmObject;
+import io.realm.annotations.Index;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * Outgoing message waiting to be sent or to be acknowledged by server.
+ */
+public class OutboxItem extends RealmObject {
+
+    public static final String FIELD_MESSAGE_ID = "messageId";
+    public static final String FIELD_ACCOUNT = "account";
+    public static final String FIELD_USER = "user";
+    public static final String FIELD_TIMESTAMP = "timestamp";
+    public static final String FIELD_STATE = "state";
+    public static final String FIELD_ATTEMPTS = "attempts";
+    public static final String FIELD_NEXT_ATTEMPT_TIME = "nextAttemptTime";
+
+    public enum State {
+        /**
+         * Waiting to be sent.
+         */
+        queued,
+        /**
+         * Sent, waiting for Stream Management acknowledgement.
+         */
+        sent
+    }
+
+    /**
+     * Unique id of the message item.
+     */
+    @PrimaryKey
+    private String messageId;
+
+    @Index
+    private String account;
+
+    private String user;
+
+    /**
+     * Time when message was queued, used to keep sending order.
+     */
+    private long timestamp;
+
+    private String state;
+
+    /**
+     * Number of failed sending attempts.
+     */
+    private int attempts;
+
+    /**
+     * Time of the next sending attempt after failure.
+     */
+    private long nextAttemptTime;
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public State getState() {
+        return state == null ? State.queued : State.valueOf(state);
+    }
+
+    public void setState(State state) {
+        this.state = state.toString();
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public void setNextAttemptTime(long nextAttemptTime) {
+        this.nextAttemptTime = nextAttemptTime;
+    }
+}
@@ -27,6 +27,7 @@ import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.capability.CapabilitiesManager;
@@ -148,6 +149,12 @@ public class AttentionManager implements OnPacketListener, OnLoadListener {
                 attentionRequestProvider);
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest()
+                .namespace(PacketInterest.Kind.message, AttentionExtension.NAMESPACE);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (!(stanza instanceof Message)) {
@@ -158,7 +165,7 @@ public class AttentionManager implements OnPacketListener, OnLoadListener {
         }
         final AccountJid account = connection.getAccount();
 
-        UserJid from;
+        final UserJid from;
         try {
             from = UserJid.from(stanza.getFrom());
         } catch (UserJid.UserJidCreateException e) {
@@ -168,11 +175,16 @@ public class AttentionManager implements OnPacketListener, OnLoadListener {
 
         for (ExtensionElement packetExtension : stanza.getExtensions()) {
             if (packetExtension instanceof AttentionExtension) {
-                MessageManager.getInstance().openChat(account, from);
-                MessageManager.getInstance()
-                        .getOrCreateChat(account, from)
-                        .newAction(null, null, ChatAction.attention_requested);
-                attentionRequestProvider.add(new AttentionRequest(account, from.getBareUserJid()), true);
+                Application.getInstance().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        MessageManager.getInstance().openChat(account, from);
+                        MessageManager.getInstance()
+                                .getOrCreateChat(account, from)
+                                .newAction(null, null, ChatAction.attention_requested);
+                        attentionRequestProvider.add(new AttentionRequest(account, from.getBareUserJid()), true);
+                    }
+                });
             }
         }
     }
@@ -0,0 +1,20 @@
+package com.xabber.android.data.extension.avatar;
+
+import com.xabber.android.data.entity.UserJid;
+
+/**
+ * Avatar of the user without roster item was decoded, e.g. of the room or
+ * of the user from not saved chat.
+ */
+public class AvatarChangedEvent {
+
+    private final UserJid user;
+
+    public AvatarChangedEvent(UserJid user) {
+        this.user = user;
+    }
+
+    public UserJid getUser() {
+        return user;
+    }
+}
@@ -22,8 +22,10 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 
 import com.xabber.android.R;
 import com.xabber.android.data.Application;
@@ -32,15 +34,20 @@ import com.xabber.android.data.OnLoadListener;
 import com.xabber.android.data.OnLowMemoryListener;
 import com.xabber.android.data.SettingsManager;
 import com.xabber.android.data.account.AccountItem;
+import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.database.sqlite.AvatarTable;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.vcard.VCardManager;
+import com.xabber.android.data.roster.RosterContact;
+import com.xabber.android.data.roster.RosterManager;
 import com.xabber.android.ui.color.ColorManager;
 import com.xabber.xmpp.vcardupdate.VCardUpdate;
 
+import org.greenrobot.eventbus.EventBus;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
@@ -48,15 +55,20 @@ import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.impl.JidCreate;
 import org.jxmpp.stringprep.XmppStringprepException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Provides information about avatars (hashes and values). Store and retrieve
  * hashes from database and binary values from file system. Caches user's hashes
- * and avatar's values in memory. Handles changes in user's hashes. Requests
- * information from server when avatar for given hash don't exists locally.
+ * in memory. Avatar's values are decoded on first use to the requested size and
+ * kept in LRU cache limited by {@link #getBitmapCacheSize()} bytes. Handles
+ * changes in user's hashes. Requests information from server when avatar for
+ * given hash don't exists locally.
  * <p/>
  * <p/>
  * This class is thread safe. All operation modification made from synchronized
@@ -75,6 +87,11 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      */
     private static final int MAX_SIZE = 256;
 
+    /**
+     * Maximum number of cached contact list drawables.
+     */
+    private static final int MAX_CONTACT_LIST_DRAWABLES = 256;
+
     public static final String EMPTY_HASH = "";
     private static final Bitmap EMPTY_BITMAP = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
     private static AvatarManager instance;
@@ -87,15 +104,24 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      */
     private final Map<Jid, String> hashes;
     /**
-     * Map with bitmaps for specified hashes.
+     * Hashes of avatars which were stored or requested from storage.
+     */
+    private final Set<String> storedHashes;
+    /**
+     * Cache of decoded bitmaps by hash and size.
      * <p/>
      * {@link #EMPTY_BITMAP} is used to store <code>null</code> values.
      */
-    private final Map<String, Bitmap> bitmaps;
+    private final LruCache<String, Bitmap> bitmaps;
     /**
-     * Map with drawable used in contact list only for specified uses.
+     * Keys of bitmaps being decoded in background.
+     * Accessed from the UI thread only.
      */
-    private final Map<Jid, Drawable> contactListDrawables;
+    private final Set<String> decodingBitmaps;
+    /**
+     * Cache of drawable used in contact list only for specified uses.
+     */
+    private final LruCache<Jid, Drawable> contactListDrawables;
     /**
      * Users' default avatar set.
      */
@@ -119,18 +145,34 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         roomAvatarSet = new BaseAvatarSet(application, R.array.muc_avatars, R.array.default_avatars_colors);
 
         hashes = new HashMap<>();
-        bitmaps = new HashMap<>();
-        contactListDrawables = new HashMap<>();
+        storedHashes = new HashSet<>();
+        bitmaps = new LruCache<String, Bitmap>(getBitmapCacheSize()) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        contactListDrawables = new LruCache<>(MAX_CONTACT_LIST_DRAWABLES);
+        decodingBitmaps = new HashSet<>();
+    }
+
+    /**
+     * @return Size of the bitmap cache in bytes, 1/8 of available heap.
+     */
+    private static int getBitmapCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
     }
 
     /**
      * Make {@link Bitmap} from array of bytes.
      *
      * @param value
+     * @param size  wanted width / height, image is down scaled by power of two
+     *              while it is not less than this size.
      * @return Bitmap. <code>null</code> can be returned if value is invalid or
      * is <code>null</code>.
      */
-    private static Bitmap makeBitmap(byte[] value) {
+    private static Bitmap makeBitmap(byte[] value, int size) {
         if (value == null) {
             return null;
         }
@@ -144,7 +186,7 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         int scale = 1;
         int width_tmp = sizeOptions.outWidth;
         int height_tmp = sizeOptions.outHeight;
-        while (width_tmp / 2 >= MAX_SIZE && height_tmp / 2 >= MAX_SIZE) {
+        while (width_tmp / 2 >= size && height_tmp / 2 >= size) {
             scale *= 2;
             width_tmp /= 2;
             height_tmp /= 2;
@@ -177,7 +219,6 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
     @Override
     public void onLoad() {
         final Map<Jid, String> hashes = new HashMap<>();
-        final Map<String, Bitmap> bitmaps = new HashMap<>();
         Cursor cursor = AvatarTable.getInstance().list();
         try {
             if (cursor.moveToFirst()) {
@@ -195,22 +236,21 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         } finally {
             cursor.close();
         }
-        for (String hash : new HashSet<>(hashes.values()))
-            if (!hash.equals(EMPTY_HASH)) {
-                Bitmap bitmap = makeBitmap(AvatarStorage.getInstance().read(hash));
-                bitmaps.put(hash, bitmap == null ? EMPTY_BITMAP : bitmap);
-            }
         Application.getInstance().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                onLoaded(hashes, bitmaps);
+                onLoaded(hashes);
             }
         });
     }
 
-    private void onLoaded(Map<Jid, String> hashes, Map<String, Bitmap> bitmaps) {
+    private void onLoaded(Map<Jid, String> hashes) {
         this.hashes.putAll(hashes);
-        this.bitmaps.putAll(bitmaps);
+        for (String hash : hashes.values()) {
+            if (!hash.equals(EMPTY_HASH)) {
+                storedHashes.add(hash);
+            }
+        }
     }
 
     /**
@@ -233,16 +273,32 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
     /**
      * Get avatar's value for user.
      *
+     * On cache miss bitmap is decoded from storage. On the UI thread it is
+     * decoded in background and listeners are notified when it is ready.
+     *
      * @param jid
+     * @param size wanted width / height.
      * @return avatar's value. <code>null</code> can be returned if user has no
-     * avatar or avatar doesn't exists.
+     * avatar, avatar doesn't exists or is not decoded yet.
      */
-    private Bitmap getBitmap(Jid jid) {
+    private Bitmap getBitmap(Jid jid, int size) {
         String hash = getHash(jid);
         if (hash == null || hash.equals(EMPTY_HASH)) {
             return null;
         }
-        Bitmap bitmap = bitmaps.get(hash);
+        String key = getBitmapKey(hash, size);
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                decodeBitmap(jid, hash, size);
+                return null;
+            }
+            bitmap = makeBitmap(AvatarStorage.getInstance().read(hash), size);
+            if (bitmap == null) {
+                bitmap = EMPTY_BITMAP;
+            }
+            bitmaps.put(key, bitmap);
+        }
         if (bitmap == EMPTY_BITMAP) {
             return null;
         } else {
@@ -250,6 +306,88 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         }
     }
 
+    /**
+     * Decodes bitmap in background.
+     */
+    private void decodeBitmap(final Jid jid, final String hash, final int size) {
+        final String key = getBitmapKey(hash, size);
+        if (!decodingBitmaps.add(key)) {
+            return;
+        }
+        application.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = makeBitmap(AvatarStorage.getInstance().read(hash), size);
+                application.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBitmapDecoded(jid, key, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Caches decoded bitmap and notifies listeners of the user's contacts and accounts.
+     */
+    private void onBitmapDecoded(Jid jid, String key, Bitmap bitmap) {
+        decodingBitmaps.remove(key);
+        bitmaps.put(key, bitmap == null ? EMPTY_BITMAP : bitmap);
+        if (bitmap == null) {
+            return;
+        }
+        contactListDrawables.remove(jid);
+
+        UserJid user;
+        try {
+            user = UserJid.from(jid);
+        } catch (UserJid.UserJidCreateException e) {
+            LogManager.exception(this, e);
+            return;
+        }
+        Collection<RosterContact> contacts = new ArrayList<>();
+        Collection<AccountJid> accounts = new ArrayList<>();
+        boolean notInRoster = false;
+        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
+            RosterContact rosterContact = RosterManager.getInstance().getRosterContact(account, user);
+            if (rosterContact != null) {
+                contacts.add(rosterContact);
+            } else {
+                notInRoster = true;
+            }
+            if (account.getFullJid().asBareJid().equals(jid)) {
+                accounts.add(account);
+            }
+        }
+        if (!accounts.isEmpty()) {
+            AccountManager.getInstance().onAccountsChanged(accounts);
+        }
+        if (!contacts.isEmpty()) {
+            RosterManager.onContactsChanged(contacts);
+        }
+        if (notInRoster && accounts.isEmpty()) {
+            // empty contact change would regroup the whole contact list
+            EventBus.getDefault().post(new AvatarChangedEvent(user));
+        }
+    }
+
+    private static String getBitmapKey(String hash, int size) {
+        return hash + "/" + size;
+    }
+
+    /**
+     * Drops decoded bitmaps of the hash.
+     */
+    private void removeBitmaps(String hash) {
+        String prefix = hash + "/";
+        for (String key : bitmaps.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                bitmaps.remove(key);
+            }
+        }
+    }
+
     @Nullable
     public String getHash(Jid bareAddress) {
         return hashes.get(bareAddress);
@@ -265,8 +403,10 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         if (hash == null) {
             return;
         }
-        Bitmap bitmap = makeBitmap(value);
-        bitmaps.put(hash, bitmap == null ? EMPTY_BITMAP : bitmap);
+        removeBitmaps(hash);
+        Bitmap bitmap = makeBitmap(value, MAX_SIZE);
+        bitmaps.put(getBitmapKey(hash, MAX_SIZE), bitmap == null ? EMPTY_BITMAP : bitmap);
+        storedHashes.add(hash);
         application.runInBackground(new Runnable() {
             @Override
             public void run() {
@@ -277,7 +417,8 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
 
     @Override
     public void onLowMemory() {
-        contactListDrawables.clear();
+        bitmaps.trimToSize(bitmaps.maxSize() / 2);
+        contactListDrawables.trimToSize(contactListDrawables.maxSize() / 2);
         userAvatarSet.onLowMemory();
         roomAvatarSet.onLowMemory();
     }
@@ -292,7 +433,7 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      * </ul>
      */
     public Drawable getAccountAvatar(AccountJid account) {
-        Bitmap value = getBitmap(account.getFullJid().asBareJid());
+        Bitmap value = getBitmap(account.getFullJid().asBareJid(), MAX_SIZE);
         if (value != null) {
             return new BitmapDrawable(application.getResources(), value);
         } else {
@@ -315,7 +456,18 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      * @return
      */
     public Drawable getUserAvatar(UserJid user) {
-        Bitmap value = getBitmap(user.getJid());
+        return getUserAvatar(user, MAX_SIZE);
+    }
+
+    /**
+     * Gets avatar for regular user decoded for the given size.
+     *
+     * @param user
+     * @param size width / height in pixels.
+     * @return
+     */
+    public Drawable getUserAvatar(UserJid user, int size) {
+        Bitmap value = getBitmap(user.getJid(), size);
         if (value != null) {
             return new BitmapDrawable(application.getResources(), value);
         } else {
@@ -339,7 +491,7 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      * @return
      */
     public Bitmap getUserBitmap(UserJid user) {
-        Bitmap value = getBitmap(user.getJid());
+        Bitmap value = getBitmap(user.getJid(), MAX_SIZE);
         if (value != null) {
             return value;
         } else {
@@ -356,12 +508,16 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
     public Drawable getUserAvatarForContactList(UserJid user) {
         Drawable drawable = contactListDrawables.get(user.getJid());
         if (drawable == null) {
-            drawable = getUserAvatar(user);
+            drawable = getUserAvatar(user, getContactListAvatarSize());
             contactListDrawables.put(user.getJid(), drawable);
         }
         return drawable;
     }
 
+    private int getContactListAvatarSize() {
+        return application.getResources().getDimensionPixelSize(R.dimen.avatar_normal_size);
+    }
+
     /**
      * Gets avatar for the room.
      *
@@ -419,26 +575,39 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
         setHash(jid, hash);
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().namespace(PacketInterest.Kind.presence, VCardUpdate.NAMESPACE);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (!(stanza instanceof Presence)) {
             return;
         }
 
-        AccountJid account = ((AccountItem) connection).getAccount();
+        final AccountJid account = ((AccountItem) connection).getAccount();
         Presence presence = (Presence) stanza;
         if (presence.getType() == Presence.Type.error) {
             return;
         }
         for (ExtensionElement packetExtension : presence.getExtensions()) {
             if (packetExtension instanceof VCardUpdate) {
-                VCardUpdate vCardUpdate = (VCardUpdate) packetExtension;
+                final VCardUpdate vCardUpdate = (VCardUpdate) packetExtension;
                 if (vCardUpdate.isValid() && vCardUpdate.isPhotoReady()) {
+                    final UserJid user;
                     try {
-                        onPhotoReady(account, UserJid.from(stanza.getFrom()), vCardUpdate);
+                        user = UserJid.from(stanza.getFrom());
                     } catch (UserJid.UserJidCreateException e) {
                         LogManager.exception(this, e);
+                        continue;
                     }
+                    application.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onPhotoReady(account, user, vCardUpdate);
+                        }
+                    });
                 }
             }
         }
@@ -450,7 +619,7 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
             return;
         }
         final String hash = vCardUpdate.getPhotoHash();
-        if (bitmaps.containsKey(hash)) {
+        if (storedHashes.contains(hash)) {
             setHash(user.getJid(), hash);
             return;
         }
@@ -468,7 +637,7 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
      */
     private void loadBitmap(final AccountJid account, final Jid jid, final String hash) {
         final byte[] value = AvatarStorage.getInstance().read(hash);
-        final Bitmap bitmap = makeBitmap(value);
+        final Bitmap bitmap = makeBitmap(value, MAX_SIZE);
         Application.getInstance().runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -487,7 +656,8 @@ public class AvatarManager implements OnLoadListener, OnLowMemoryListener, OnPac
                 VCardManager.getInstance().request(account, jid);
             }
         } else {
-            bitmaps.put(hash, bitmap == null ? EMPTY_BITMAP : bitmap);
+            bitmaps.put(getBitmapKey(hash, MAX_SIZE), bitmap == null ? EMPTY_BITMAP : bitmap);
+            storedHashes.add(hash);
             setHash(jid, hash);
         }
     }
@@ -21,18 +21,68 @@ import com.xabber.android.data.OnLoadListener;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Manager for avatar files.
+ * <p/>
+ * Avatars are appended to the single pack file as records of hash length,
+ * hash, value length and value. Index from hash to value's position is built
+ * on load and values are read from memory mapping of the pack. Values appended
+ * after the pack was mapped are read from the file until the pack doubles and
+ * is mapped again. Rewritten values leave garbage which is removed by
+ * compaction in background.
+ * <p/>
+ * Avatars from the folder with file per hash are moved to the pack on first load.
  *
  * @author alexander.ivanov
  */
 public class AvatarStorage implements OnLoadListener, OnClearListener {
 
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Min size of garbage in bytes to start compaction.
+     */
+    private static final long MIN_GARBAGE_TO_COMPACT = 1024 * 1024;
+
+    /**
+     * Folder with avatar per file used by previous versions.
+     */
     private final File folder;
 
+    private final File packFile;
+
+    private final File compactFile;
+
+    /**
+     * Positions of values by hashes.
+     */
+    private final Map<String, Entry> entries;
+
+    private RandomAccessFile pack;
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * Size of the pack.
+     */
+    private long size;
+
+    /**
+     * Size of rewritten records.
+     */
+    private long garbage;
+
+    private boolean compactionRequested;
+
     private static AvatarStorage instance;
 
     public static AvatarStorage getInstance() {
@@ -45,24 +95,88 @@ public class AvatarStorage implements OnLoadListener, OnClearListener {
 
     private AvatarStorage() {
         folder = new File(Application.getInstance().getFilesDir(), "avatars");
+        packFile = new File(Application.getInstance().getFilesDir(), "avatars.pack");
+        compactFile = new File(Application.getInstance().getFilesDir(), "avatars.pack.tmp");
+        entries = new HashMap<>();
     }
 
     @Override
     public void onLoad() {
-        if (!folder.exists()) {
-            folder.mkdirs();
+        synchronized (this) {
+            try {
+                open();
+            } catch (IOException e) {
+                LogManager.exception(this, e);
+                return;
+            }
+        }
+        migrate();
+    }
+
+    private void open() throws IOException {
+        if (compactFile.exists()) {
+            compactFile.delete();
+        }
+        pack = new RandomAccessFile(packFile, "rw");
+        entries.clear();
+        size = 0;
+        garbage = 0;
+        mapped = null;
+
+        FileChannel channel = pack.getChannel();
+        long length = channel.size();
+        if (length == 0) {
+            return;
         }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int hashLength = buffer.getInt();
+            if (hashLength < 0 || buffer.remaining() < hashLength + 4) {
+                break;
+            }
+            byte[] hash = new byte[hashLength];
+            buffer.get(hash);
+            int valueLength = buffer.getInt();
+            if (valueLength < 0 || buffer.remaining() < valueLength) {
+                break;
+            }
+            int offset = buffer.position();
+            buffer.position(offset + valueLength);
+            addEntry(new String(hash, CHARSET), new Entry(offset, valueLength, offset + valueLength - start));
+            size = buffer.position();
+        }
+
+        if (size < length) {
+            LogManager.w(this, "Truncate broken avatar pack from " + length + " to " + size);
+            channel.truncate(size);
+        }
+        mapped = buffer;
     }
 
-    private File getFile(String hash) {
-        return new File(folder, hash);
+    /**
+     * Moves avatars from the folder with file per hash.
+     */
+    private void migrate() {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            byte[] value = readFile(file);
+            if (value != null) {
+                write(file.getName(), value);
+            }
+            file.delete();
+        }
+        folder.delete();
     }
 
-    byte[] read(String hash) {
+    private byte[] readFile(File file) {
         byte[] value;
         FileInputStream inputStream;
         try {
-            inputStream = new FileInputStream(getFile(hash));
+            inputStream = new FileInputStream(file);
             value = new byte[inputStream.available()];
             inputStream.read(value);
             inputStream.close();
@@ -73,20 +187,237 @@ public class AvatarStorage implements OnLoadListener, OnClearListener {
         return value;
     }
 
+    private void addEntry(String hash, Entry entry) {
+        Entry previous = entries.put(hash, entry);
+        if (previous != null) {
+            garbage += previous.recordLength;
+        }
+    }
+
+    synchronized byte[] read(String hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null || pack == null) {
+            return null;
+        }
+        byte[] value = new byte[entry.length];
+        try {
+            if (mapped == null || size >= 2L * mapped.capacity()) {
+                mapped = pack.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            if (entry.offset + entry.length <= mapped.capacity()) {
+                ByteBuffer buffer = mapped.duplicate();
+                buffer.position(entry.offset);
+                buffer.get(value);
+            } else {
+                readTail(entry, value);
+            }
+        } catch (IOException e) {
+            LogManager.exception(this, e);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Reads value appended after the pack was mapped.
+     */
+    private void readTail(Entry entry, byte[] value) throws IOException {
+        FileChannel channel = pack.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new IOException("Avatar pack ends before the value");
+            }
+        }
+    }
+
     void write(String hash, byte[] value) {
+        synchronized (this) {
+            if (pack == null) {
+                return;
+            }
+            byte[] hashBytes = hash.getBytes(CHARSET);
+            ByteBuffer record = ByteBuffer.allocate(4 + hashBytes.length + 4 + value.length);
+            record.putInt(hashBytes.length);
+            record.put(hashBytes);
+            record.putInt(value.length);
+            record.put(value);
+            record.flip();
+            try {
+                FileChannel channel = pack.getChannel();
+                long start = size;
+                while (record.hasRemaining()) {
+                    channel.write(record, start + record.position());
+                }
+                size = start + record.capacity();
+                addEntry(hash, new Entry((int) (size - value.length), value.length, record.capacity()));
+            } catch (IOException e) {
+                LogManager.exception(this, e);
+                return;
+            }
+            if (compactionRequested || garbage < MIN_GARBAGE_TO_COMPACT || garbage < size / 2) {
+                return;
+            }
+            compactionRequested = true;
+        }
+        Application.getInstance().runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * Rewrites the pack without rewritten records.
+     * <p/>
+     * Records are copied without lock, because written records are never changed.
+     * Records written meanwhile are appended and the pack is replaced under lock.
+     */
+    @SuppressWarnings("WeakerAccess")
+    void compact() {
+        final RandomAccessFile source;
+        final Map<String, Entry> sourceEntries;
+        final long sourceSize;
+        synchronized (this) {
+            if (pack == null) {
+                compactionRequested = false;
+                return;
+            }
+            source = pack;
+            sourceEntries = new HashMap<>(entries);
+            sourceSize = size;
+        }
+
+        RandomAccessFile compacted = null;
+        boolean replacing = false;
         try {
-            FileOutputStream outputStream = new FileOutputStream(getFile(hash));
-            outputStream.write(value);
-            outputStream.close();
+            compacted = new RandomAccessFile(compactFile, "rw");
+            FileChannel target = compacted.getChannel();
+            target.truncate(0);
+            Map<String, Entry> compactedEntries = new HashMap<>();
+            long position = 0;
+            for (Map.Entry<String, Entry> hashEntry : sourceEntries.entrySet()) {
+                Entry entry = hashEntry.getValue();
+                transfer(source.getChannel(), entry.offset + entry.length - entry.recordLength,
+                        entry.recordLength, target);
+                compactedEntries.put(hashEntry.getKey(), new Entry(
+                        (int) (position + entry.recordLength - entry.length), entry.length, entry.recordLength));
+                position += entry.recordLength;
+            }
+
+            synchronized (this) {
+                compactionRequested = false;
+                if (pack != source) {
+                    // pack was cleared
+                    return;
+                }
+                long tail = size - sourceSize;
+                transfer(source.getChannel(), sourceSize, tail, target);
+                target.force(false);
+
+                compacted.close();
+                compacted = null;
+                replacing = true;
+                pack.close();
+                if (!compactFile.renameTo(packFile)) {
+                    LogManager.w(this, "Can't replace avatar pack");
+                    open();
+                    return;
+                }
+
+                // entries are rebased only when the pack was replaced
+                long used = 0;
+                for (Map.Entry<String, Entry> hashEntry : entries.entrySet()) {
+                    Entry entry = hashEntry.getValue();
+                    if (entry != sourceEntries.get(hashEntry.getKey())) {
+                        entry = new Entry((int) (entry.offset - sourceSize + position),
+                                entry.length, entry.recordLength);
+                    } else {
+                        entry = compactedEntries.get(hashEntry.getKey());
+                    }
+                    hashEntry.setValue(entry);
+                    used += entry.recordLength;
+                }
+                LogManager.i(this, "Avatar pack compacted from " + size + " to " + (position + tail));
+                pack = new RandomAccessFile(packFile, "rw");
+                mapped = null;
+                size = position + tail;
+                garbage = size - used;
+            }
         } catch (IOException e) {
             LogManager.exception(this, e);
+            synchronized (this) {
+                compactionRequested = false;
+                if (replacing) {
+                    // pack was closed, so entries are read again from the file in place
+                    try {
+                        open();
+                    } catch (IOException reopenException) {
+                        LogManager.exception(this, reopenException);
+                        pack = null;
+                    }
+                }
+            }
+        } finally {
+            if (compacted != null) {
+                try {
+                    compacted.close();
+                } catch (IOException e) {
+                    LogManager.exception(this, e);
+                }
+                compactFile.delete();
+            }
+        }
+    }
+
+    private static void transfer(FileChannel source, long start, long length, FileChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            transferred += source.transferTo(start + transferred, length - transferred, target);
         }
     }
 
     @Override
-    public void onClear() {
-        for (File file : folder.listFiles()) {
-            file.delete();
+    public synchronized void onClear() {
+        try {
+            if (pack != null) {
+                pack.close();
+            }
+            packFile.delete();
+            open();
+        } catch (IOException e) {
+            LogManager.exception(this, e);
+            pack = null;
+        }
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        /**
+         * Position of the value in the pack.
+         */
+        final int offset;
+
+        final int length;
+
+        /**
+         * Length of the whole record with the value.
+         */
+        final int recordLength;
+
+        Entry(int offset, int length, int recordLength) {
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
         }
     }
+
 }
@@ -20,6 +20,7 @@ import android.support.annotation.Nullable;
 import com.xabber.android.BuildConfig;
 import com.xabber.android.R;
 import com.xabber.android.data.Application;
+import com.xabber.android.data.OnLoadListener;
 import com.xabber.android.data.account.AccountItem;
 import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.entity.AccountJid;
@@ -37,25 +38,43 @@ import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jxmpp.jid.Jid;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provide information about entity capabilities.
+ * <p/>
+ * Client info is cached by caps node and ver, or by jid for entities without
+ * Entity Caps. Only one disco#info request is sent for the same node and ver
+ * at a time, other jids wait for its result.
  *
  * @author alexander.ivanov
  */
-public class CapabilitiesManager {
+public class CapabilitiesManager implements OnLoadListener {
 
     @SuppressWarnings("WeakerAccess")
     static final String LOG_TAG = CapabilitiesManager.class.getSimpleName();
 
+    /**
+     * Max number of cached client infos.
+     */
+    private static final int MAX_CLIENT_INFO_CACHE_SIZE = 500;
+
     private static CapabilitiesManager instance;
 
     // cache for jids does not supporting Entity Caps
     @SuppressWarnings("WeakerAccess")
     Map<Jid, DiscoverInfo> discoverInfoCache;
-    private Map<Jid, ClientInfo> clientInfoCache;
+    private final Map<String, ClientInfo> clientInfoCache;
+    /**
+     * Jids waiting for running disco#info requests by accounts and cache keys.
+     */
+    private final Map<String, List<Jid>> requests;
+    private final EntityCapsCache entityCapsCache;
 
     public static CapabilitiesManager getInstance() {
         if (instance == null) {
@@ -69,12 +88,35 @@ public class CapabilitiesManager {
         Context applicationContext = Application.getInstance().getApplicationContext();
 
         EntityCapsManager.setDefaultEntityNode(applicationContext.getString(R.string.caps_entity_node));
-        EntityCapsManager.setPersistentCache(new EntityCapsCache());
+        entityCapsCache = new EntityCapsCache();
+        EntityCapsManager.setPersistentCache(entityCapsCache);
 
         setServiceDiscoveryClientIdentity(applicationContext);
 
         discoverInfoCache = new ConcurrentHashMap<>();
-        clientInfoCache = new ConcurrentHashMap<>();
+        clientInfoCache = Collections.synchronizedMap(new LinkedHashMap<String, ClientInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ClientInfo> eldest) {
+                return size() > MAX_CLIENT_INFO_CACHE_SIZE;
+            }
+        });
+        requests = new HashMap<>();
+    }
+
+    /**
+     * @return caps node and ver of the jid or jid itself if it has no caps.
+     */
+    private static String getCacheKey(Jid jid) {
+        EntityCapsManager.NodeVerHash nodeVerHash = EntityCapsManager.getNodeVerHashByJid(jid);
+        if (nodeVerHash != null) {
+            return nodeVerHash.getNodeVer();
+        }
+        return jid.toString();
+    }
+
+    @Override
+    public void onLoad() {
+        entityCapsCache.onLoad();
     }
 
     private void setServiceDiscoveryClientIdentity(Context applicationContext) {
@@ -90,21 +132,28 @@ public class CapabilitiesManager {
 
     @Nullable
     public ClientInfo getCachedClientInfo(final Jid jid) {
-        ClientInfo clientInfo = clientInfoCache.get(jid);
+        String key = getCacheKey(jid);
+        ClientInfo clientInfo = clientInfoCache.get(key);
+        if (clientInfo == null) {
+            // failed and not verified requests are cached by jid
+            clientInfo = clientInfoCache.get(jid.toString());
+        }
 
         if (clientInfo != null) {
             return clientInfo;
         }
 
         DiscoverInfo discoverInfoByUser = EntityCapsManager.getDiscoverInfoByUser(jid);
-
-        if (discoverInfoByUser == null) {
-            discoverInfoByUser = discoverInfoCache.get(jid);
+        if (discoverInfoByUser != null) {
+            clientInfo = ClientInfo.fromDiscoveryInfo(discoverInfoByUser);
+            clientInfoCache.put(key, clientInfo);
+            return clientInfo;
         }
 
+        discoverInfoByUser = discoverInfoCache.get(jid);
         if (discoverInfoByUser != null) {
-            clientInfo =  ClientInfo.fromDiscoveryInfo(discoverInfoByUser);
-            clientInfoCache.put(jid, clientInfo);
+            clientInfo = ClientInfo.fromDiscoveryInfo(discoverInfoByUser);
+            clientInfoCache.put(jid.toString(), clientInfo);
         }
 
         return clientInfo;
@@ -113,33 +162,60 @@ public class CapabilitiesManager {
     public void onPresence(final AccountJid accountJid, final Presence presence) {
         final Jid from = presence.getFrom();
 
+        // info cached for node and ver can't change, drop only info cached for jid
         discoverInfoCache.remove(from);
-        clientInfoCache.remove(from);
+        clientInfoCache.remove(from.toString());
 
         DiscoverInfo discoverInfoByUser = EntityCapsManager.getDiscoverInfoByUser(from);
         if (discoverInfoByUser != null) {
             return;
         }
 
-        Application.getInstance().runInBackground(new Runnable() {
-            @Override
-            public void run() {
-                updateClientInfo(accountJid, from);
-            }
-        });
+        requestClientInfo(accountJid, from, false);
     }
 
     public void requestClientInfoByUser(final AccountJid account, final Jid jid) {
-        Application.getInstance().runInBackgroundUserRequest(new Runnable() {
+        requestClientInfo(account, jid, true);
+    }
+
+    /**
+     * Requests disco#info unless request for the same caps is running.
+     */
+    private void requestClientInfo(final AccountJid account, final Jid jid, boolean userRequest) {
+        final String key = getCacheKey(jid);
+        final String requestKey = account + "\n" + key;
+        synchronized (requests) {
+            List<Jid> waiting = requests.get(requestKey);
+            if (waiting != null) {
+                if (!waiting.contains(jid)) {
+                    waiting.add(jid);
+                }
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(jid);
+            requests.put(requestKey, waiting);
+        }
+
+        Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                updateClientInfo(account, jid);
+                try {
+                    updateClientInfo(account, jid, key);
+                } finally {
+                    onRequestFinished(account, requestKey);
+                }
             }
-        });
+        };
+        if (userRequest) {
+            Application.getInstance().runInBackgroundUserRequest(runnable);
+        } else {
+            Application.getInstance().runInBackground(runnable);
+        }
     }
 
     @SuppressWarnings("WeakerAccess")
-    void updateClientInfo(final AccountJid account, final Jid jid) {
+    void updateClientInfo(final AccountJid account, final Jid jid, final String key) {
         DiscoverInfo discoverInfo = EntityCapsManager.getDiscoverInfoByUser(jid);
 
         if (discoverInfo != null) {
@@ -155,26 +231,44 @@ public class CapabilitiesManager {
             discoverInfo = ServiceDiscoveryManager.getInstanceFor(accountItem.getConnection())
                     .discoverInfo(jid);
 
-            EntityCapsManager.NodeVerHash nodeVerHashByJid = EntityCapsManager.getNodeVerHashByJid(jid);
-            if (nodeVerHashByJid == null) {
+            // info is shared by node and ver only when caps manager verified it against ver
+            if (EntityCapsManager.getDiscoverInfoByUser(jid) != null) {
+                if (discoverInfo != null) {
+                    clientInfoCache.put(key, ClientInfo.fromDiscoveryInfo(discoverInfo));
+                }
+            } else if (discoverInfo != null) {
                 discoverInfoCache.put(jid, discoverInfo);
-            }
-
-            if (discoverInfo != null) {
-                clientInfoCache.put(jid, ClientInfo.fromDiscoveryInfo(discoverInfo));
+                clientInfoCache.put(jid.toString(), ClientInfo.fromDiscoveryInfo(discoverInfo));
             }
 
         } catch (SmackException.NoResponseException | XMPPException.XMPPErrorException | InterruptedException | SmackException.NotConnectedException e) {
             LogManager.exception(this, e);
-            clientInfoCache.put(jid, ClientInfo.INVALID_CLIENT_INFO);
+            clientInfoCache.put(jid.toString(), ClientInfo.INVALID_CLIENT_INFO);
         }
+    }
 
-        RosterContact rosterContact = RosterManager.getInstance().getRosterContact(account, jid.asBareJid());
+    /**
+     * Notifies about changed contacts which waited for the request.
+     */
+    @SuppressWarnings("WeakerAccess")
+    void onRequestFinished(AccountJid account, String requestKey) {
+        List<Jid> waiting;
+        synchronized (requests) {
+            waiting = requests.remove(requestKey);
+        }
+        if (waiting == null) {
+            return;
+        }
 
-        if (rosterContact != null) {
-            final ArrayList<RosterContact> rosterContacts = new ArrayList<>();
-            rosterContacts.add(rosterContact);
+        final ArrayList<RosterContact> rosterContacts = new ArrayList<>();
+        for (Jid jid : waiting) {
+            RosterContact rosterContact = RosterManager.getInstance().getRosterContact(account, jid.asBareJid());
+            if (rosterContact != null && !rosterContacts.contains(rosterContact)) {
+                rosterContacts.add(rosterContact);
+            }
+        }
 
+        if (!rosterContacts.isEmpty()) {
             Application.getInstance().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -1,36 +1,160 @@
 package com.xabber.android.data.extension.capability;
 
+import android.support.annotation.NonNull;
+
 import com.xabber.android.data.database.RealmManager;
 import com.xabber.android.data.database.realm.DiscoveryInfoCache;
+import com.xabber.android.data.log.LogManager;
 
 import org.jivesoftware.smackx.caps.cache.EntityCapsPersistentCache;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 
-import io.realm.Realm;
-
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import io.realm.Realm;
+import io.realm.RealmResults;
+
+/**
+ * Entity caps cache stored in Realm.
+ * <p/>
+ * Lookups are served from bounded in-memory LRU map, warmed on load.
+ * New nodes are written to database in background with one transaction
+ * for all nodes received during {@link #WRITE_DELAY_MILLIS}.
+ */
 class EntityCapsCache implements EntityCapsPersistentCache {
 
     private static final String LOG_TAG = EntityCapsCache.class.getSimpleName();
 
+    /**
+     * Max number of nodes kept in memory.
+     */
+    private static final int MAX_SIZE = 500;
+
+    private static final long WRITE_DELAY_MILLIS = 1000;
+
+    /**
+     * Recently used discovery info by nodes.
+     */
+    private final Map<String, DiscoverInfo> infos;
+
+    /**
+     * Nodes waiting to be written.
+     */
+    private final Map<String, DiscoverInfo> pendingWrites;
+
+    private final ScheduledExecutorService writer;
+
+    EntityCapsCache() {
+        infos = new LinkedHashMap<String, DiscoverInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DiscoverInfo> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+        pendingWrites = new HashMap<>();
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Entity caps cache writer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Loads stored nodes into memory.
+     */
+    void onLoad() {
+        Map<String, DiscoverInfo> loaded = new HashMap<>();
+        Realm realm = RealmManager.getInstance().getNewRealm();
+        RealmResults<DiscoveryInfoCache> results = realm.where(DiscoveryInfoCache.class).findAll();
+        for (int i = 0; i < results.size() && i < MAX_SIZE; i++) {
+            DiscoveryInfoCache discoveryInfoCache = results.get(i);
+            try {
+                loaded.put(discoveryInfoCache.getNodeVer(), discoveryInfoCache.getDiscoveryInfo());
+            } catch (IllegalStateException e) {
+                LogManager.exception(LOG_TAG, e);
+            }
+        }
+        realm.close();
+
+        synchronized (infos) {
+            for (Map.Entry<String, DiscoverInfo> entry : loaded.entrySet()) {
+                if (!infos.containsKey(entry.getKey())) {
+                    infos.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
     @Override
     public void addDiscoverInfoByNodePersistent(final String nodeVer, final DiscoverInfo info) {
         if (nodeVer == null || info == null) {
             return;
         }
 
-        Realm realm = RealmManager.getInstance().getNewRealm();
-        realm.beginTransaction();
+        synchronized (infos) {
+            infos.put(nodeVer, info);
+        }
+
+        boolean schedule;
+        synchronized (pendingWrites) {
+            schedule = pendingWrites.isEmpty();
+            pendingWrites.put(nodeVer, info);
+        }
+        if (schedule) {
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-        DiscoveryInfoCache discoveryInfoCache = new DiscoveryInfoCache(nodeVer, info);
-        realm.copyToRealmOrUpdate(discoveryInfoCache);
+    @SuppressWarnings("WeakerAccess")
+    void writePending() {
+        Map<String, DiscoverInfo> writes;
+        synchronized (pendingWrites) {
+            writes = new HashMap<>(pendingWrites);
+            pendingWrites.clear();
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
 
+        Realm realm = RealmManager.getInstance().getNewRealm();
+        realm.beginTransaction();
+        for (Map.Entry<String, DiscoverInfo> entry : writes.entrySet()) {
+            realm.copyToRealmOrUpdate(new DiscoveryInfoCache(entry.getKey(), entry.getValue()));
+        }
         realm.commitTransaction();
         realm.close();
     }
 
     @Override
     public DiscoverInfo lookup(String nodeVer) {
+        synchronized (infos) {
+            DiscoverInfo discoverInfo = infos.get(nodeVer);
+            if (discoverInfo != null) {
+                return discoverInfo;
+            }
+        }
+        synchronized (pendingWrites) {
+            DiscoverInfo discoverInfo = pendingWrites.get(nodeVer);
+            if (discoverInfo != null) {
+                return discoverInfo;
+            }
+        }
+
         Realm realm = RealmManager.getInstance().getNewRealm();
 
         DiscoveryInfoCache discoveryInfoCache = realm.where(DiscoveryInfoCache.class)
@@ -40,24 +164,42 @@ class EntityCapsCache implements EntityCapsPersistentCache {
         DiscoverInfo discoverInfo = null;
 
         if (discoveryInfoCache != null) {
-            discoverInfo = realm.copyFromRealm(discoveryInfoCache).getDiscoveryInfo();
+            discoverInfo = discoveryInfoCache.getDiscoveryInfo();
         }
 
         realm.close();
 
+        if (discoverInfo != null) {
+            synchronized (infos) {
+                infos.put(nodeVer, discoverInfo);
+            }
+        }
+
         return discoverInfo;
     }
 
     @Override
     public void emptyCache() {
-        Realm realm = RealmManager.getInstance().getNewRealm();
+        synchronized (infos) {
+            infos.clear();
+        }
+        synchronized (pendingWrites) {
+            pendingWrites.clear();
+        }
 
-        realm.beginTransaction();
-        realm.where(DiscoveryInfoCache.class)
-                .findAll()
-                .deleteAllFromRealm();
-        realm.commitTransaction();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                Realm realm = RealmManager.getInstance().getNewRealm();
 
-        realm.close();
+                realm.beginTransaction();
+                realm.where(DiscoveryInfoCache.class)
+                        .findAll()
+                        .deleteAllFromRealm();
+                realm.commitTransaction();
+
+                realm.close();
+            }
+        });
     }
 }
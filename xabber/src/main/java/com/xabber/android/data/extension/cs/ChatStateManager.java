@@ -17,19 +17,19 @@ package com.xabber.android.data.extension.cs;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
-import android.os.Handler;
 
 import com.xabber.android.data.Application;
 import com.xabber.android.data.NetworkException;
 import com.xabber.android.data.OnCloseListener;
+import com.xabber.android.data.OnTimerListener;
 import com.xabber.android.data.SettingsManager;
 import com.xabber.android.data.account.AccountItem;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.ConnectionManager;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnDisconnectListener;
-import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.OnUiPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.NestedMap;
 import com.xabber.android.data.entity.NestedNestedMaps;
@@ -55,16 +55,20 @@ import org.jxmpp.jid.BareJid;
 import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.parts.Resourcepart;
 
-import java.util.Calendar;
 import java.util.Map;
 
 /**
  * Provide information about chat state.
+ * <p/>
+ * Pause of composing and expiration of received states are scheduled on the
+ * single {@link TimerWheel} advanced by application timer. System alarm is set
+ * only while screen is off and some pause is pending, so pause is sent even if
+ * device falls asleep.
  *
  * @author alexander.ivanov
  */
 public class ChatStateManager implements OnDisconnectListener,
-        OnPacketListener, OnCloseListener {
+        OnUiPacketListener, OnCloseListener, OnTimerListener {
 
     private static ChatStateManager instance;
 
@@ -99,7 +103,7 @@ public class ChatStateManager implements OnDisconnectListener,
      * Cleaners for chat states for lower cased resource for bareAddress in
      * account.
      */
-    private final NestedNestedMaps<Resourcepart, Runnable> stateCleaners;
+    private final NestedNestedMaps<Resourcepart, TimerWheel.Timeout> stateCleaners;
 
     /**
      * Information about chat state notification support for lower cased
@@ -113,9 +117,14 @@ public class ChatStateManager implements OnDisconnectListener,
     private final NestedMap<ChatState> sent;
 
     /**
-     * Scheduled pause intents for bareAddress in account.
+     * Scheduled pauses for bareAddress in account.
      */
-    private final NestedMap<PendingIntent> pauseIntents;
+    private final NestedMap<TimerWheel.Timeout> pauseTimeouts;
+
+    /**
+     * Timeouts of pauses and received chat states.
+     */
+    private final TimerWheel timerWheel;
 
     /**
      * Alarm manager.
@@ -123,19 +132,21 @@ public class ChatStateManager implements OnDisconnectListener,
     private final AlarmManager alarmManager;
 
     /**
-     * Handler for clear states on timeout.
+     * Wakes up device to send pending pauses while screen is off.
      */
-    private final Handler handler;
+    private final PendingIntent pauseAlarmIntent;
 
     private ChatStateManager() {
         chatStates = new NestedNestedMaps<>();
         stateCleaners = new NestedNestedMaps<>();
         supports = new NestedNestedMaps<>();
         sent = new NestedMap<>();
-        pauseIntents = new NestedMap<>();
+        pauseTimeouts = new NestedMap<>();
+        timerWheel = new TimerWheel(OnTimerListener.DELAY);
         alarmManager = (AlarmManager) Application.getInstance()
                 .getSystemService(Context.ALARM_SERVICE);
-        handler = new Handler();
+        pauseAlarmIntent = PendingIntent.getBroadcast(Application.getInstance(), 0,
+                ComposingPausedReceiver.createIntent(Application.getInstance()), 0);
     }
 
     /**
@@ -192,7 +203,7 @@ public class ChatStateManager implements OnDisconnectListener,
         }
         message.addExtension(new ChatStateExtension(ChatState.active));
         sent.put(chat.getAccount().toString(), chat.getUser().toString(), ChatState.active);
-        cancelPauseIntent(chat.getAccount(), chat.getUser());
+        cancelPause(chat.getAccount(), chat.getUser());
     }
 
     /**
@@ -221,46 +232,75 @@ public class ChatStateManager implements OnDisconnectListener,
     }
 
     /**
-     * Cancel pause intent from the schedule.
+     * Cancel pause from the schedule.
      */
-    private void cancelPauseIntent(AccountJid account, UserJid user) {
-        PendingIntent pendingIntent = pauseIntents.remove(account.toString(), user.toString());
-        if (pendingIntent != null)
-            alarmManager.cancel(pendingIntent);
+    private void cancelPause(AccountJid account, UserJid user) {
+        TimerWheel.Timeout timeout = pauseTimeouts.remove(account.toString(), user.toString());
+        if (timeout != null)
+            timeout.cancel();
     }
 
     /**
      * Must be call each time user change text message.
      */
-    public void onComposing(AccountJid account, UserJid user, CharSequence text) {
-        cancelPauseIntent(account, user);
+    public void onComposing(final AccountJid account, final UserJid user, CharSequence text) {
+        cancelPause(account, user);
         if (text.length() == 0) {
             updateChatState(account, user, ChatState.active);
             return;
         } else {
             updateChatState(account, user, ChatState.composing);
         }
-        Intent intent = ComposingPausedReceiver.createIntent(
-                Application.getInstance(), account, user);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                Application.getInstance(), 0, intent, 0);
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(System.currentTimeMillis());
-        calendar.add(Calendar.MILLISECOND, PAUSE_TIMEOUT);
-        alarmManager.set(AlarmManager.RTC_WAKEUP, calendar.getTimeInMillis(),
-                pendingIntent);
-        pauseIntents.put(account.toString(), user.toString(), pendingIntent);
+        TimerWheel.Timeout timeout = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onPaused(account, user);
+            }
+        }, PAUSE_TIMEOUT);
+        pauseTimeouts.put(account.toString(), user.toString(), timeout);
     }
 
     public void onPaused(AccountJid account, UserJid user) {
         if (account == null || user == null)
             return;
+        cancelPause(account, user);
         if (sent.get(account.toString(), user.toString()) != ChatState.composing) {
             return;
         }
 
         updateChatState(account, user, ChatState.paused);
-        pauseIntents.remove(account.toString(), user.toString());
+    }
+
+    @Override
+    public void onTimer() {
+        timerWheel.advance();
+    }
+
+    /**
+     * Sends pauses which were scheduled before device fell asleep.
+     */
+    public void onPauseAlarm() {
+        timerWheel.advance();
+    }
+
+    /**
+     * Wakes up device for the nearest pending pause.
+     */
+    public void onScreenOff() {
+        long deadline = Long.MAX_VALUE;
+        for (TimerWheel.Timeout timeout : pauseTimeouts.values()) {
+            deadline = Math.min(deadline, timeout.deadline);
+        }
+        if (deadline != Long.MAX_VALUE) {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, pauseAlarmIntent);
+        }
+    }
+
+    /**
+     * Application timer will send pending pauses.
+     */
+    public void onScreenOn() {
+        alarmManager.cancel(pauseAlarmIntent);
     }
 
     @Override
@@ -269,27 +309,34 @@ public class ChatStateManager implements OnDisconnectListener,
             return;
         AccountJid account = ((AccountItem) connection).getAccount();
         chatStates.clear(account.toString());
-        for (Map<Resourcepart, Runnable> map : stateCleaners.getNested(account.toString()).values()) {
-            for (Runnable runnable : map.values()) {
-                handler.removeCallbacks(runnable);
+        for (Map<Resourcepart, TimerWheel.Timeout> map : stateCleaners.getNested(account.toString()).values()) {
+            for (TimerWheel.Timeout timeout : map.values()) {
+                timeout.cancel();
             }
         }
         stateCleaners.clear(account.toString());
         supports.clear(account.toString());
         sent.clear(account.toString());
-        for (PendingIntent pendingIntent : pauseIntents.getNested(account.toString()).values()) {
-            alarmManager.cancel(pendingIntent);
+        for (TimerWheel.Timeout timeout : pauseTimeouts.getNested(account.toString()).values()) {
+            timeout.cancel();
         }
-        pauseIntents.clear(account.toString());
+        pauseTimeouts.clear(account.toString());
     }
 
     private void removeCallback(AccountJid account, BareJid bareAddress, Resourcepart resource) {
-        Runnable runnable = stateCleaners.remove(account.toString(), bareAddress.toString(), resource);
-        if (runnable != null) {
-            handler.removeCallbacks(runnable);
+        TimerWheel.Timeout timeout = stateCleaners.remove(account.toString(), bareAddress.toString(), resource);
+        if (timeout != null) {
+            timeout.cancel();
         }
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest()
+                .all(PacketInterest.Kind.message)
+                .all(PacketInterest.Kind.presence);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (stanza.getFrom() == null) {
@@ -325,19 +372,19 @@ public class ChatStateManager implements OnDisconnectListener,
                     ChatState chatState = ((ChatStateExtension) extension).getChatState();
                     chatStates.put(account.toString(), bareUserJid.toString(), resource, chatState);
                     if (chatState != ChatState.active) {
-                        Runnable runnable = new Runnable() {
+                        final TimerWheel.Timeout[] cleaner = new TimerWheel.Timeout[1];
+                        cleaner[0] = timerWheel.schedule(new Runnable() {
                             @Override
                             public void run() {
-                                if (this != stateCleaners.get(account.toString(), bareUserJid.toString(), resource)) {
+                                if (cleaner[0] != stateCleaners.get(account.toString(), bareUserJid.toString(), resource)) {
                                     return;
                                 }
                                 chatStates.remove(account.toString(), bareUserJid.toString(), resource);
                                 removeCallback(account, bareUserJid.getBareJid(), resource);
                                 RosterManager.onChatStateChanged(account, bareUserJid);
                             }
-                        };
-                        handler.postDelayed(runnable, REMOVE_STATE_DELAY);
-                        stateCleaners.put(account.toString(), bareUserJid.toString(), resource, runnable);
+                        }, REMOVE_STATE_DELAY);
+                        stateCleaners.put(account.toString(), bareUserJid.toString(), resource, cleaner[0]);
                     }
                     RosterManager.onChatStateChanged(account, bareUserJid);
                     support = true;
@@ -359,10 +406,11 @@ public class ChatStateManager implements OnDisconnectListener,
 
     @Override
     public void onClose() {
-        for (PendingIntent pendingIntent : pauseIntents.values()) {
-            alarmManager.cancel(pendingIntent);
+        for (TimerWheel.Timeout timeout : pauseTimeouts.values()) {
+            timeout.cancel();
         }
-        pauseIntents.clear();
+        pauseTimeouts.clear();
+        alarmManager.cancel(pauseAlarmIntent);
     }
 
 }
@@ -0,0 +1,119 @@
+package com.xabber.android.data.extension.cs;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hashed timer wheel for short timeouts.
+ * <p/>
+ * Timeouts are put to the slot of their deadline tick, so scheduling and
+ * cancellation cost O(1). {@link #advance()} must be called periodically,
+ * expired tasks are run on its thread. Tasks should check whether they are
+ * still actual, because cancellation from other thread can race with run.
+ */
+class TimerWheel {
+
+    private static final int SLOTS = 64;
+
+    private final long tickMillis;
+
+    private final List<Set<Timeout>> slots;
+
+    /**
+     * Last processed tick.
+     */
+    private long tick;
+
+    private int size;
+
+    TimerWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new HashSet<Timeout>());
+        }
+        tick = getTick(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Schedules task to be run after the delay, rounded up to the tick.
+     */
+    synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = SystemClock.elapsedRealtime() + delayMillis;
+        Timeout timeout = new Timeout(task, deadline, Math.max(tick + 1, getTick(deadline) + 1));
+        getSlot(timeout.deadlineTick).add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Runs expired tasks.
+     */
+    void advance() {
+        List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            long currentTick = getTick(SystemClock.elapsedRealtime());
+            // all slots are visited at least once if ticks were missed
+            long lastTick = Math.min(currentTick, tick + SLOTS);
+            while (size > 0 && tick < lastTick) {
+                tick++;
+                Set<Timeout> slot = getSlot(tick);
+                for (Iterator<Timeout> iterator = slot.iterator(); iterator.hasNext(); ) {
+                    Timeout timeout = iterator.next();
+                    if (timeout.deadlineTick <= currentTick) {
+                        iterator.remove();
+                        size--;
+                        expired.add(timeout);
+                    }
+                }
+            }
+            tick = currentTick;
+        }
+        for (Timeout timeout : expired) {
+            timeout.task.run();
+        }
+    }
+
+    private long getTick(long time) {
+        return time / tickMillis;
+    }
+
+    private Set<Timeout> getSlot(long tick) {
+        return slots.get((int) (tick % SLOTS));
+    }
+
+    class Timeout {
+
+        final Runnable task;
+
+        /**
+         * Time of expiration in {@link SystemClock#elapsedRealtime()} base.
+         */
+        final long deadline;
+
+        final long deadlineTick;
+
+        Timeout(Runnable task, long deadline, long deadlineTick) {
+            this.task = task;
+            this.deadline = deadline;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the task if it was not run yet.
+         */
+        void cancel() {
+            synchronized (TimerWheel.this) {
+                if (getSlot(deadlineTick).remove(this)) {
+                    size--;
+                }
+            }
+        }
+    }
+
+}
@@ -7,13 +7,18 @@ import com.xabber.android.data.Application;
 import com.xabber.android.data.account.AccountItem;
 import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.connection.ConnectionItem;
+import com.xabber.android.data.connection.listeners.OnDisconnectListener;
 import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.messagerealm.AccountSyncInfo;
 import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.database.messagerealm.SyncInfo;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.BaseEntity;
+import com.xabber.android.data.entity.NestedMap;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.file.FileManager;
+import com.xabber.android.data.extension.muc.MUCManager;
+import com.xabber.android.data.extension.muc.RoomChat;
 import com.xabber.android.data.extension.otr.OTRManager;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.message.AbstractChat;
@@ -30,32 +35,62 @@ import org.greenrobot.eventbus.EventBus;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
 import org.jivesoftware.smackx.delay.packet.DelayInformation;
+import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
 import org.jivesoftware.smackx.forward.packet.Forwarded;
+import org.jxmpp.jid.Jid;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import io.realm.Realm;
 import io.realm.RealmResults;
 
-public class MamManager implements OnRosterReceivedListener {
+public class MamManager implements OnRosterReceivedListener, OnDisconnectListener {
     static final String LOG_TAG = MamManager.class.getSimpleName();
     private static MamManager instance;
     public static final int SYNC_INTERVAL_MINUTES = 5;
 
     public static int PAGE_SIZE = AbstractChat.PRELOADED_MESSAGES;
 
+    private static final long PAGE_WRITER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Feature advertised by rooms which keep their own archive.
+     */
+    private static final String ROOM_ARCHIVE_FEATURE = "urn:xmpp:mam:2";
+
     private Map<AccountJid, Boolean> supportedByAccount;
 
+    /**
+     * Whether room keeps its own archive by account and room.
+     */
+    private final NestedMap<Boolean> supportedByRoom;
+
+    private final Map<AccountJid, MamSyncScheduler> syncSchedulers;
+
+    /**
+     * Stores fetched archive pages, so the next page can be requested
+     * while the previous one is being stored.
+     */
+    private final ThreadPoolExecutor pageWriter;
+
     public static MamManager getInstance() {
         if (instance == null) {
             instance = new MamManager();
@@ -66,33 +101,365 @@ public class MamManager implements OnRosterReceivedListener {
 
     public MamManager() {
         supportedByAccount = new ConcurrentHashMap<>();
+        supportedByRoom = new NestedMap<>();
+        syncSchedulers = new ConcurrentHashMap<>();
+
+        pageWriter = new ThreadPoolExecutor(1, 1, PAGE_WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "MAM page writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pageWriter.allowCoreThreadTimeOut(true);
     }
 
     public void onAuthorized(ConnectionItem connectionItem) {
         updateIsSupported((AccountItem) connectionItem);
     }
 
+    @Override
+    public void onDisconnect(ConnectionItem connection) {
+        supportedByRoom.clear(connection.getAccount().toString());
+        MamSyncScheduler scheduler = syncSchedulers.get(connection.getAccount());
+        if (scheduler != null) {
+            scheduler.cancel();
+        }
+    }
+
+    private MamSyncScheduler getSyncScheduler(AccountJid account) {
+        synchronized (syncSchedulers) {
+            MamSyncScheduler scheduler = syncSchedulers.get(account);
+            if (scheduler == null) {
+                scheduler = new MamSyncScheduler(account);
+                syncSchedulers.put(account, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * Sets number of chats of the account to be synced in parallel.
+     * {@link MamSyncScheduler#DEFAULT_CONCURRENCY} is used by default.
+     */
+    public void setSyncConcurrency(AccountJid account, int concurrency) {
+        getSyncScheduler(account).setConcurrency(concurrency);
+    }
+
 
     @Override
     public void onRosterReceived(final AccountItem accountItem) {
         LogManager.i(this, "onRosterReceived " + accountItem.getAccount());
-        Application.getInstance().runOnUiThread(new Runnable() {
+        if (accountItem.getLoadHistorySettings() != LoadHistorySettings.all) {
+            return;
+        }
+
+        getSyncScheduler(accountItem.getAccount()).scheduleCatchUp(new Runnable() {
             @Override
             public void run() {
-                if (accountItem.getLoadHistorySettings() != LoadHistorySettings.all) {
-                    return;
+                catchUp(accountItem);
+            }
+        });
+    }
+
+    /**
+     * Loads messages of all chats archived since the newest archive id the account has seen
+     * using account-wide queries, so the cost depends on the number of new messages only.
+     * Chats which were never synced are requested separately.
+     * On the first sync of the account only the newest archive id is remembered
+     * and all chats, including synced before, are requested separately.
+     */
+    @SuppressWarnings("WeakerAccess")
+    void catchUp(AccountItem accountItem) {
+        final AccountJid account = accountItem.getAccount();
+        XMPPTCPConnection connection = accountItem.getConnection();
+        if (!connection.isAuthenticated() || !checkSupport(accountItem)) {
+            return;
+        }
+
+        org.jivesoftware.smackx.mam.MamManager mamManager
+                = org.jivesoftware.smackx.mam.MamManager.getInstanceFor(connection);
+
+        String lastMessageMamId = getAccountLastMessageMamId(account);
+        boolean caughtUp = false;
+        try {
+            if (lastMessageMamId == null) {
+                org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult
+                        = mamManager.pageBefore((Jid) null, "", 1);
+                if (mamQueryResult.mamFin.getRSMSet() != null) {
+                    setAccountLastMessageMamId(account, mamQueryResult.mamFin.getRSMSet().getLast());
+                }
+                // chats synced one by one before have to load messages since their own archive ids
+            } else {
+                int pagesCount = 0;
+                int receivedMessagesCount;
+                org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult;
+                PageWriterQueue pages = new PageWriterQueue(pageWriter);
+                do {
+                    mamQueryResult = mamManager.pageAfter((Jid) null, lastMessageMamId, PAGE_SIZE);
+                    receivedMessagesCount = mamQueryResult.forwardedMessages.size();
+                    pagesCount++;
+
+                    String pageLastMessageMamId = mamQueryResult.mamFin.getRSMSet() == null
+                            ? null : mamQueryResult.mamFin.getRSMSet().getLast();
+                    if (pageLastMessageMamId == null) {
+                        break;
+                    }
+
+                    if (!pages.submit(storeCatchUpPage(account, mamQueryResult.forwardedMessages,
+                            pageLastMessageMamId))) {
+                        break;
+                    }
+                    lastMessageMamId = pageLastMessageMamId;
+                } while (receivedMessagesCount == PAGE_SIZE && !mamQueryResult.mamFin.isComplete());
+                if (pages.await()) {
+                    LogManager.i(this, "Catch-up of " + account + " finished in " + pagesCount + " queries");
+                    caughtUp = true;
+                } else {
+                    LogManager.w(this, "Catch-up of " + account + " stopped, page was not stored");
                 }
+            }
+        } catch (SmackException.NotLoggedInException | InterruptedException
+                | SmackException.NotConnectedException | SmackException.NoResponseException
+                | XMPPException.XMPPErrorException e) {
+            LogManager.exception(this, e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            requestNotCaughtUpHistory(account, caughtUp);
+        }
+    }
 
+    /**
+     * Requests last history of the chats separately.
+     *
+     * @param caughtUp whether chats synced before were updated by the catch-up,
+     *                 otherwise all chats are requested.
+     */
+    private void requestNotCaughtUpHistory(final AccountJid account, boolean caughtUp) {
+        final Collection<String> syncedUsers = caughtUp
+                ? getSyncedUsers(account) : Collections.<String>emptySet();
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
                 Collection<RosterContact> contacts = RosterManager.getInstance()
-                        .getAccountRosterContacts(accountItem.getAccount());
+                        .getAccountRosterContacts(account);
                 for (RosterContact contact : contacts) {
-                    requestLastHistory(MessageManager.getInstance()
-                            .getOrCreateChat(contact.getAccount(), contact.getUser()));
+                    if (!syncedUsers.contains(contact.getUser().toString())) {
+                        requestLastHistory(MessageManager.getInstance()
+                                .getOrCreateChat(contact.getAccount(), contact.getUser()));
+                    }
                 }
             }
         });
     }
 
+    private Callable<Boolean> storeCatchUpPage(final AccountJid account, final List<Forwarded> forwardedMessages,
+                                               final String pageLastMessageMamId) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return syncCatchUpPage(account, forwardedMessages, pageLastMessageMamId);
+            }
+        };
+    }
+
+    /**
+     * Splits account-wide page into chats. Only chats synced before are updated,
+     * other chats will load their last history separately.
+     * Messages of all chats and new archive ids are stored in one transaction.
+     *
+     * @return whether page was stored.
+     */
+    private boolean syncCatchUpPage(AccountJid account, List<Forwarded> forwardedMessages,
+                                 String pageLastMessageMamId) {
+        Map<UserJid, List<Forwarded>> chatMessages = new HashMap<>();
+        for (Forwarded forwarded : forwardedMessages) {
+            if (!(forwarded.getForwardedStanza() instanceof Message)) {
+                continue;
+            }
+            Message message = (Message) forwarded.getForwardedStanza();
+            if (message.getType() == Message.Type.groupchat) {
+                continue;
+            }
+
+            Jid companion = account.getFullJid().asBareJid().equals(message.getFrom().asBareJid())
+                    ? message.getTo() : message.getFrom();
+            if (companion == null) {
+                continue;
+            }
+
+            UserJid user;
+            try {
+                user = UserJid.from(companion.asBareJid());
+            } catch (UserJid.UserJidCreateException e) {
+                LogManager.exception(this, e);
+                continue;
+            }
+
+            List<Forwarded> messages = chatMessages.get(user);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                chatMessages.put(user, messages);
+            }
+            messages.add(forwarded);
+        }
+
+        Collection<String> syncedUsers = getSyncedUsers(account);
+        Collection<UserJid> users = new ArrayList<>();
+        for (UserJid user : chatMessages.keySet()) {
+            if (syncedUsers.contains(user.toString())) {
+                users.add(user);
+            }
+        }
+
+        Map<UserJid, AbstractChat> chats;
+        Collection<String> rooms = new HashSet<>();
+        try {
+            chats = getSyncedChats(account, users, syncedUsers, rooms);
+        } catch (InterruptedException e) {
+            LogManager.exception(this, e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        Map<AbstractChat, List<MessageItem>> chatMessageItems = new HashMap<>();
+        for (Map.Entry<UserJid, AbstractChat> entry : chats.entrySet()) {
+            AbstractChat chat = entry.getValue();
+            chatMessageItems.put(chat, getMessageItems(chatMessages.get(entry.getKey()), chat));
+        }
+
+        AccountSyncInfo accountSyncInfo = new AccountSyncInfo();
+        accountSyncInfo.setAccount(account);
+        accountSyncInfo.setLastMessageMamId(pageLastMessageMamId);
+
+        List<AbstractChat> updatedChats = new ArrayList<>();
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        try {
+            realm.beginTransaction();
+            for (Map.Entry<AbstractChat, List<MessageItem>> entry : chatMessageItems.entrySet()) {
+                if (storeNewMessages(realm, entry.getKey(), entry.getValue())) {
+                    updatedChats.add(entry.getKey());
+                }
+            }
+
+            // archive ids are account-wide, so all synced chats have no messages before this id,
+            // rooms keep ids of their own archives
+            RealmResults<SyncInfo> syncInfos = realm.where(SyncInfo.class)
+                    .equalTo(SyncInfo.FIELD_ACCOUNT, account.toString())
+                    .isNotNull(SyncInfo.FIELD_LAST_MESSAGE_MAM_ID)
+                    .findAll();
+            for (SyncInfo syncInfo : syncInfos) {
+                if (rooms.contains(syncInfo.getUser())) {
+                    continue;
+                }
+                syncInfo.setLastMessageMamId(pageLastMessageMamId);
+            }
+            realm.copyToRealmOrUpdate(accountSyncInfo);
+            realm.commitTransaction();
+        } finally {
+            if (realm.isInTransaction()) {
+                realm.cancelTransaction();
+            }
+            realm.close();
+        }
+
+        for (AbstractChat chat : updatedChats) {
+            MessageManager.getInstance().reloadLastMessage(chat.getAccount(), chat.getUser());
+        }
+        return true;
+    }
+
+    /**
+     * Gets or creates chats on the UI thread, where chats are managed,
+     * and marks them as synced now.
+     * Waits until chats are ready.
+     *
+     * @param syncedUsers users of the synced chats to be checked for rooms.
+     * @param rooms       receives synced users which are rooms.
+     */
+    private Map<UserJid, AbstractChat> getSyncedChats(final AccountJid account, final Collection<UserJid> users,
+                                                      final Collection<String> syncedUsers,
+                                                      final Collection<String> rooms)
+            throws InterruptedException {
+        final Map<UserJid, AbstractChat> chats = new HashMap<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String user : syncedUsers) {
+                        try {
+                            if (MUCManager.getInstance().hasRoom(account, UserJid.from(user))) {
+                                rooms.add(user);
+                            }
+                        } catch (UserJid.UserJidCreateException e) {
+                            LogManager.exception(this, e);
+                        }
+                    }
+                    Date now = new Date(System.currentTimeMillis());
+                    for (UserJid user : users) {
+                        AbstractChat chat = MessageManager.getInstance().getOrCreateChat(account, user);
+                        chat.setLastSyncedTime(now);
+                        chats.put(user, chat);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        latch.await();
+        // latch makes chats and rooms put on the UI thread visible here
+        return chats;
+    }
+
+    /**
+     * @return users of the chats which have loaded their last history.
+     */
+    private Collection<String> getSyncedUsers(AccountJid account) {
+        Collection<String> users = new HashSet<>();
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        RealmResults<SyncInfo> syncInfos = realm.where(SyncInfo.class)
+                .equalTo(SyncInfo.FIELD_ACCOUNT, account.toString())
+                .isNotNull(SyncInfo.FIELD_LAST_MESSAGE_MAM_ID)
+                .findAll();
+        for (SyncInfo syncInfo : syncInfos) {
+            users.add(syncInfo.getUser());
+        }
+        realm.close();
+        return users;
+    }
+
+    @Nullable
+    private String getAccountLastMessageMamId(AccountJid account) {
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        AccountSyncInfo accountSyncInfo = realm.where(AccountSyncInfo.class)
+                .equalTo(AccountSyncInfo.FIELD_ACCOUNT, account.toString())
+                .findFirst();
+        String lastMessageMamId = accountSyncInfo == null ? null : accountSyncInfo.getLastMessageMamId();
+        realm.close();
+        return lastMessageMamId;
+    }
+
+    private void setAccountLastMessageMamId(AccountJid account, String lastMessageMamId) {
+        if (lastMessageMamId == null) {
+            return;
+        }
+
+        AccountSyncInfo accountSyncInfo = new AccountSyncInfo();
+        accountSyncInfo.setAccount(account);
+        accountSyncInfo.setLastMessageMamId(lastMessageMamId);
+
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        realm.beginTransaction();
+        realm.copyToRealmOrUpdate(accountSyncInfo);
+        realm.commitTransaction();
+        realm.close();
+    }
+
     @Nullable
     public Boolean isSupported(AccountJid accountJid) {
         return supportedByAccount.get(accountJid);
@@ -163,21 +530,71 @@ public class MamManager implements OnRosterReceivedListener {
     }
 
     public void requestLastHistoryByUser(final AbstractChat chat) {
-        Application.getInstance().runInBackgroundUserRequest(new Runnable() {
-            @Override
-            public void run() {
-                getLastHistory(chat, false);
-            }
-        });
+        if (chat == null) {
+            return;
+        }
+        getSyncScheduler(chat.getAccount()).schedule(chat, false);
     }
 
-    private void requestLastHistory(final AbstractChat chat) {
-        Application.getInstance().runInBackground(new Runnable() {
-            @Override
-            public void run() {
-                getLastHistory(chat, true);
+    /**
+     * Requests messages archived since the last sync of the chat.
+     */
+    public void requestLastHistory(final AbstractChat chat) {
+        getSyncScheduler(chat.getAccount()).schedule(chat, true);
+    }
+
+    /**
+     * @return Whether messages of the chat were already received from the archive,
+     * so it can be synced from the archive. Room must keep its own archive.
+     * Must be called from background thread.
+     */
+    public boolean isArchiveSynced(AbstractChat chat) {
+        if (chat instanceof RoomChat) {
+            AccountItem accountItem = AccountManager.getInstance().getAccount(chat.getAccount());
+            if (accountItem == null || !isRoomArchiveSupported(accountItem, (RoomChat) chat)) {
+                return false;
             }
-        });
+        } else if (!Boolean.TRUE.equals(isSupported(chat.getAccount()))) {
+            return false;
+        }
+
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        SyncInfo syncInfo = realm.where(SyncInfo.class)
+                .equalTo(SyncInfo.FIELD_ACCOUNT, chat.getAccount().toString())
+                .equalTo(SyncInfo.FIELD_USER, chat.getUser().toString())
+                .findFirst();
+        boolean synced = syncInfo != null && syncInfo.getLastMessageMamId() != null;
+        realm.close();
+        return synced;
+    }
+
+    /**
+     * Rooms keep their own archive, history of the room is not stored in the personal archive.
+     * Support is requested once per connection.
+     * Must be called from background thread.
+     *
+     * @return whether room advertises {@link #ROOM_ARCHIVE_FEATURE}.
+     */
+    private boolean isRoomArchiveSupported(AccountItem accountItem, RoomChat roomChat) {
+        String account = accountItem.getAccount().toString();
+        String room = roomChat.getTo().toString();
+        Boolean isSupported = supportedByRoom.get(account, room);
+        if (isSupported != null) {
+            return isSupported;
+        }
+
+        try {
+            isSupported = ServiceDiscoveryManager.getInstanceFor(accountItem.getConnection())
+                    .supportsFeature(roomChat.getTo(), ROOM_ARCHIVE_FEATURE);
+        } catch (SmackException.NoResponseException | XMPPException.XMPPErrorException
+                | SmackException.NotConnectedException | InterruptedException e) {
+            LogManager.exception(this, e);
+            return false;
+        }
+
+        LogManager.i(this, "MAM support for room " + room + " " + isSupported);
+        supportedByRoom.put(account, room, isSupported);
+        return isSupported;
     }
 
     private boolean isTimeToRefreshHistory(AbstractChat chat) {
@@ -208,36 +625,76 @@ public class MamManager implements OnRosterReceivedListener {
             return;
         }
 
-        if (!checkSupport(accountItem)) {
-            return;
+        final org.jivesoftware.smackx.mam.MamManager mamManager;
+        if (chat instanceof RoomChat) {
+            if (!isRoomArchiveSupported(accountItem, (RoomChat) chat)) {
+                return;
+            }
+            mamManager = org.jivesoftware.smackx.mam.MamManager
+                    .getInstanceFor(connection, ((RoomChat) chat).getTo());
+        } else {
+            if (!checkSupport(accountItem)) {
+                return;
+            }
+            mamManager = org.jivesoftware.smackx.mam.MamManager.getInstanceFor(connection);
         }
 
         EventBus.getDefault().post(new LastHistoryLoadStartedEvent(chat));
 
-        org.jivesoftware.smackx.mam.MamManager mamManager
-                = org.jivesoftware.smackx.mam.MamManager.getInstanceFor(connection);
-
         String lastMessageMamId;
-        int receivedMessagesCount;
-        do {
+        {
             Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
             lastMessageMamId = getSyncInfo(realm, chat.getAccount(), chat.getUser()).getLastMessageMamId();
             realm.close();
+        }
+        PageWriterQueue pages = new PageWriterQueue(pageWriter);
+        try {
+            loadLastHistoryPages(pages, mamManager, chat, lastMessageMamId);
+            if (!pages.await()) {
+                LogManager.w(this, "Last history of " + chat.getUser() + " stopped, page was not stored");
+            }
+        } catch (InterruptedException e) {
+            LogManager.exception(this, e);
+            Thread.currentThread().interrupt();
+        }
 
-            receivedMessagesCount = requestLastHistoryPage(mamManager, chat, lastMessageMamId);
+        EventBus.getDefault().post(new LastHistoryLoadFinishedEvent(chat));
+    }
+
+    /**
+     * Requests pages since the archive id and submits them to be stored,
+     * while previous pages are stored.
+     */
+    private void loadLastHistoryPages(PageWriterQueue pages,
+                                      org.jivesoftware.smackx.mam.MamManager mamManager,
+                                      AbstractChat chat, String lastMessageMamId) throws InterruptedException {
+        final boolean firstTime = lastMessageMamId == null;
+        while (true) {
+            org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult
+                    = requestLastHistoryPage(mamManager, chat, lastMessageMamId);
+            if (mamQueryResult == null) {
+                break;
+            }
+
+            int receivedMessagesCount = mamQueryResult.forwardedMessages.size();
+
+            // if it was first time receiving history, and we got less than a page
+            // it mean that all previous history loaded
+            if (!pages.submit(storeLastHistoryPage(chat, mamQueryResult,
+                    getMessageItems(mamQueryResult.forwardedMessages, chat),
+                    firstTime && receivedMessagesCount < PAGE_SIZE))) {
+                break;
+            }
 
             // if it was NOT the first time, and we got exactly one page,
             // it means that there should be more unloaded recent history
-        } while (lastMessageMamId != null && receivedMessagesCount == PAGE_SIZE);
-
-        // if it was first time receiving history, and we got less than a page
-        // it mean that all previous history loaded
-        if (lastMessageMamId == null
-                && receivedMessagesCount >= 0 && receivedMessagesCount < PAGE_SIZE) {
-            setRemoteHistoryCompletelyLoaded(chat);
+            if (firstTime || receivedMessagesCount != PAGE_SIZE
+                    || mamQueryResult.mamFin.getRSMSet() == null
+                    || mamQueryResult.mamFin.getRSMSet().getLast() == null) {
+                break;
+            }
+            lastMessageMamId = mamQueryResult.mamFin.getRSMSet().getLast();
         }
-
-        EventBus.getDefault().post(new LastHistoryLoadFinishedEvent(chat));
     }
 
     public void setRemoteHistoryCompletelyLoaded(AbstractChat chat) {
@@ -251,117 +708,124 @@ public class MamManager implements OnRosterReceivedListener {
         realm.close();
     }
 
-    private int requestLastHistoryPage(org.jivesoftware.smackx.mam.MamManager mamManager,
-                                       AbstractChat chat, String lastMessageMamId) {
+    /**
+     * @return received page or <code>null</code> on error.
+     */
+    @Nullable
+    private org.jivesoftware.smackx.mam.MamManager.MamQueryResult requestLastHistoryPage(
+            org.jivesoftware.smackx.mam.MamManager mamManager, AbstractChat chat, String lastMessageMamId) {
         final org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult;
+        // archive of the room contains only its messages
+        final Jid with = chat instanceof RoomChat ? null : chat.getUser().getJid();
         try {
             if (lastMessageMamId == null) {
-                mamQueryResult = mamManager.pageBefore(chat.getUser().getJid(), "", PAGE_SIZE);
+                mamQueryResult = mamManager.pageBefore(with, "", PAGE_SIZE);
             } else {
-                mamQueryResult = mamManager.pageAfter(chat.getUser().getJid(), lastMessageMamId, PAGE_SIZE);
+                mamQueryResult = pageAfter(mamManager, with, lastMessageMamId);
             }
         } catch (SmackException.NotLoggedInException | InterruptedException
                 | SmackException.NotConnectedException | SmackException.NoResponseException | XMPPException.XMPPErrorException e) {
             LogManager.exception(this, e);
-            return -1;
+            return null;
         }
 
-        int receivedMessagesCount = mamQueryResult.forwardedMessages.size();
-
-        LogManager.i(this, "receivedMessagesCount " + receivedMessagesCount);
+        LogManager.i(this, "receivedMessagesCount " + mamQueryResult.forwardedMessages.size());
 
         chat.setLastSyncedTime(new Date(System.currentTimeMillis()));
 
-        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-        updateLastHistorySyncInfo(realm, chat, mamQueryResult);
-        syncMessages(realm, chat, getMessageItems(mamQueryResult, chat));
-        realm.close();
-
-        return receivedMessagesCount;
+        return mamQueryResult;
     }
 
-    private void syncMessages(Realm realm, AbstractChat chat, final Collection<MessageItem> messagesFromServer) {
-
-        if (messagesFromServer == null || messagesFromServer.isEmpty()) {
-            return;
+    /**
+     * Requests page after the archive id or the last page if archive doesn't know this id,
+     * e.g. room was synced from the personal archive before.
+     */
+    private org.jivesoftware.smackx.mam.MamManager.MamQueryResult pageAfter(
+            org.jivesoftware.smackx.mam.MamManager mamManager, Jid with, String lastMessageMamId)
+            throws SmackException.NotLoggedInException, InterruptedException, SmackException.NotConnectedException,
+            SmackException.NoResponseException, XMPPException.XMPPErrorException {
+        try {
+            return mamManager.pageAfter(with, lastMessageMamId, PAGE_SIZE);
+        } catch (XMPPException.XMPPErrorException e) {
+            if (e.getXMPPError().getCondition() != XMPPError.Condition.item_not_found) {
+                throw e;
+            }
+            LogManager.i(this, "Archive id " + lastMessageMamId + " not found, requesting the last page");
+            return mamManager.pageBefore(with, "", PAGE_SIZE);
         }
+    }
 
-        LogManager.i(this, "syncMessages: " + messagesFromServer.size());
-
-        RealmResults<MessageItem> localMessages = realm.where(MessageItem.class)
-                .equalTo(MessageItem.Fields.ACCOUNT, chat.getAccount().toString())
-                .equalTo(MessageItem.Fields.USER, chat.getUser().toString())
-                .findAll();
-
-        Iterator<MessageItem> iterator = messagesFromServer.iterator();
-        while (iterator.hasNext()) {
-            MessageItem remoteMessage = iterator.next();
+    /**
+     * Stores new messages of the page and updates sync info of the chat in one transaction.
+     */
+    private Callable<Boolean> storeLastHistoryPage(final AbstractChat chat,
+                                                   final org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult,
+                                                   final List<MessageItem> messageItems,
+                                                   final boolean remoteHistoryCompletelyLoaded) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean updated;
+                Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+                try {
+                    realm.beginTransaction();
+                    SyncInfo syncInfo = updateLastHistorySyncInfo(realm, chat, mamQueryResult);
+                    if (remoteHistoryCompletelyLoaded) {
+                        LogManager.i(LOG_TAG, "setRemoteHistoryCompletelyLoaded " + chat.getUser());
+                        syncInfo.setRemoteHistoryCompletelyLoaded(true);
+                    }
+                    updated = storeNewMessages(realm, chat, messageItems);
+                    realm.commitTransaction();
+                } finally {
+                    if (realm.isInTransaction()) {
+                        realm.cancelTransaction();
+                    }
+                    realm.close();
+                }
 
-            // assume that Stanza ID could be not unique
-            if (localMessages.where()
-                    .equalTo(MessageItem.Fields.STANZA_ID, remoteMessage.getStanzaId())
-                    .equalTo(MessageItem.Fields.TEXT, remoteMessage.getText())
-                    .count() > 0) {
-                LogManager.i(this, "Sync. Removing message with same Stanza ID and text. Remote message:"
-                        + " Text: " + remoteMessage.getText()
-                        + " Timestamp: " + remoteMessage.getTimestamp()
-                        + " Delay Timestamp: " + remoteMessage.getDelayTimestamp()
-                        + " StanzaId: " + remoteMessage.getStanzaId());
-                iterator.remove();
-                continue;
+                if (updated) {
+                    MessageManager.getInstance().reloadLastMessage(chat.getAccount(), chat.getUser());
+                }
+                return true;
             }
+        };
+    }
 
-            Long remoteMessageDelayTimestamp = remoteMessage.getDelayTimestamp();
-            Long remoteMessageTimestamp = remoteMessage.getTimestamp();
-
-            RealmResults<MessageItem> sameTextMessages = localMessages.where()
-                    .equalTo(MessageItem.Fields.TEXT, remoteMessage.getText()).findAll();
+    /**
+     * Stores messages of the page which are not stored yet.
+     * Whole page is checked against {@link StoredMessageIndex} built with a single query.
+     * Must be called inside write transaction.
+     *
+     * @return whether any message was stored.
+     */
+    private boolean storeNewMessages(Realm realm, AbstractChat chat, Collection<MessageItem> messagesFromServer) {
+        if (messagesFromServer == null || messagesFromServer.isEmpty()) {
+            return false;
+        }
 
-            if (isTimeStampSimilar(sameTextMessages, remoteMessageTimestamp)) {
-                LogManager.i(this, "Sync. Found messages with same text and similar remote timestamp. Removing. Remote message:"
-                        + " Text: " + remoteMessage.getText()
-                        + " Timestamp: " + remoteMessage.getTimestamp()
-                        + " Delay Timestamp: " + remoteMessage.getDelayTimestamp()
-                        + " StanzaId: " + remoteMessage.getStanzaId());
-                iterator.remove();
-                continue;
-            }
+        StoredMessageIndex storedMessages = StoredMessageIndex.create(realm, chat, messagesFromServer);
 
-            if (remoteMessageDelayTimestamp != null
-                    && isTimeStampSimilar(sameTextMessages, remoteMessageDelayTimestamp)) {
-                LogManager.i(this, "Sync. Found messages with same text and similar remote delay timestamp. Removing. Remote message:"
+        List<MessageItem> newMessages = new ArrayList<>(messagesFromServer.size());
+        for (MessageItem remoteMessage : messagesFromServer) {
+            if (storedMessages.contains(remoteMessage)) {
+                LogManager.i(this, "Sync. Removing already stored message. Remote message:"
                         + " Text: " + remoteMessage.getText()
                         + " Timestamp: " + remoteMessage.getTimestamp()
                         + " Delay Timestamp: " + remoteMessage.getDelayTimestamp()
                         + " StanzaId: " + remoteMessage.getStanzaId());
-                iterator.remove();
-                continue;
+            } else {
+                newMessages.add(remoteMessage);
             }
         }
 
-        realm.beginTransaction();
-        realm.copyToRealm(messagesFromServer);
-        realm.commitTransaction();
-    }
-
-    private static boolean isTimeStampSimilar(RealmResults<MessageItem> sameTextMessages, long remoteMessageTimestamp) {
-        long start = remoteMessageTimestamp - (1000 * 5);
-        long end = remoteMessageTimestamp + (1000 * 5);
+        LogManager.i(this, "syncMessages: " + newMessages.size() + " of " + messagesFromServer.size());
 
-        if (sameTextMessages.where()
-                .between(MessageItem.Fields.TIMESTAMP, start, end)
-                .count() > 0) {
-            LogManager.i(MamManager.class.getSimpleName(), "Sync. Found messages with similar local timestamp");
-            return true;
+        if (newMessages.isEmpty()) {
+            return false;
         }
 
-        if (sameTextMessages.where()
-                .between(MessageItem.Fields.DELAY_TIMESTAMP, start, end)
-                .count() > 0) {
-            LogManager.i(MamManager.class.getSimpleName(), "Sync. Found messages with similar local delay timestamp.");
-            return true;
-        }
-        return false;
+        realm.copyToRealm(newMessages);
+        return true;
     }
 
     @NonNull
@@ -371,20 +835,26 @@ public class MamManager implements OnRosterReceivedListener {
                 .equalTo(SyncInfo.FIELD_USER, user.toString()).findFirst();
 
         if (syncInfo == null) {
-            realm.beginTransaction();
+            boolean inTransaction = realm.isInTransaction();
+            if (!inTransaction) {
+                realm.beginTransaction();
+            }
             syncInfo = realm.createObject(SyncInfo.class);
             syncInfo.setAccount(account);
             syncInfo.setUser(user);
-            realm.commitTransaction();
+            if (!inTransaction) {
+                realm.commitTransaction();
+            }
         }
         return syncInfo;
     }
 
-    private void updateLastHistorySyncInfo(Realm realm, BaseEntity chat, org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult) {
+    /**
+     * Must be called inside write transaction.
+     */
+    private SyncInfo updateLastHistorySyncInfo(Realm realm, BaseEntity chat, org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult) {
         SyncInfo syncInfo = getSyncInfo(realm, chat.getAccount(), chat.getUser());
 
-        realm.beginTransaction();
-
         if (mamQueryResult.mamFin.getRSMSet() != null) {
 
             if (syncInfo.getFirstMamMessageMamId() == null) {
@@ -399,7 +869,7 @@ public class MamManager implements OnRosterReceivedListener {
 
         }
 
-        realm.commitTransaction();
+        return syncInfo;
     }
 
     public void requestPreviousHistory(final AbstractChat chat) {
@@ -454,21 +924,36 @@ public class MamManager implements OnRosterReceivedListener {
 
                 LogManager.i("MAM", "queryArchive finished. fin count expected: " + mamQueryResult.mamFin.getRSMSet().getCount() + " real: " + mamQueryResult.forwardedMessages.size());
 
+                List<MessageItem> messageItems = getMessageItems(mamQueryResult.forwardedMessages, chat);
+                boolean updated;
                 Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-                List<MessageItem> messageItems = getMessageItems(mamQueryResult, chat);
-                syncMessages(realm, chat, messageItems);
-                updatePreviousHistorySyncInfo(realm, chat, mamQueryResult, messageItems);
-                realm.close();
+                try {
+                    realm.beginTransaction();
+                    updated = storeNewMessages(realm, chat, messageItems);
+                    updatePreviousHistorySyncInfo(realm, chat, mamQueryResult, messageItems);
+                    realm.commitTransaction();
+                } finally {
+                    if (realm.isInTransaction()) {
+                        realm.cancelTransaction();
+                    }
+                    realm.close();
+                }
+
+                if (updated) {
+                    MessageManager.getInstance().reloadLastMessage(chat.getAccount(), chat.getUser());
+                }
             }
 
         });
 
     }
 
+    /**
+     * Must be called inside write transaction.
+     */
     private void updatePreviousHistorySyncInfo(Realm realm, BaseEntity chat, org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult, List<MessageItem> messageItems) {
         SyncInfo syncInfo = getSyncInfo(realm, chat.getAccount(), chat.getUser());
 
-        realm.beginTransaction();
         if (mamQueryResult.forwardedMessages.size() < PAGE_SIZE) {
             syncInfo.setRemoteHistoryCompletelyLoaded(true);
         }
@@ -477,13 +962,12 @@ public class MamManager implements OnRosterReceivedListener {
         if (!mamQueryResult.forwardedMessages.isEmpty()) {
             syncInfo.setFirstMamMessageStanzaId(mamQueryResult.forwardedMessages.get(0).getForwardedStanza().getStanzaId());
         }
-        realm.commitTransaction();
     }
 
-    private List<MessageItem> getMessageItems(org.jivesoftware.smackx.mam.MamManager.MamQueryResult mamQueryResult, AbstractChat chat) {
+    private List<MessageItem> getMessageItems(List<Forwarded> forwardedMessages, AbstractChat chat) {
         List<MessageItem> messageItems = new ArrayList<>();
 
-        for (Forwarded forwarded : mamQueryResult.forwardedMessages) {
+        for (Forwarded forwarded : forwardedMessages) {
             if (!(forwarded.getForwardedStanza() instanceof Message)) {
                 continue;
             }
@@ -0,0 +1,41 @@
+package com.xabber.android.data.extension.mam;
+
+import com.xabber.android.data.entity.AccountJid;
+
+/**
+ * Progress of the last history sync of the account.
+ */
+public class MamSyncProgressEvent {
+
+    private final AccountJid account;
+    private final int completed;
+    private final int total;
+
+    public MamSyncProgressEvent(AccountJid account, int completed, int total) {
+        this.account = account;
+        this.completed = completed;
+        this.total = total;
+    }
+
+    public AccountJid getAccount() {
+        return account;
+    }
+
+    /**
+     * @return number of synced chats.
+     */
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return number of chats scheduled since the sync was started.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public boolean isFinished() {
+        return completed >= total;
+    }
+}
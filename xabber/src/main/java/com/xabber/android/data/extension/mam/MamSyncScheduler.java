@@ -0,0 +1,259 @@
+package com.xabber.android.data.extension.mam;
+
+import android.support.annotation.NonNull;
+
+import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.log.LogManager;
+import com.xabber.android.data.message.AbstractChat;
+import com.xabber.android.data.message.MessageManager;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs last history sync of the account's chats on dedicated threads.
+ * <p/>
+ * Account-wide catch-up goes first, then visible chat, then opened chats,
+ * then other chats starting from the most recent one. Only one sync of the
+ * chat can be queued or running at a time.
+ */
+class MamSyncScheduler {
+
+    /**
+     * Default number of chats synced in parallel.
+     */
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int PRIORITY_CATCH_UP = -1;
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_ACTIVE = 1;
+    private static final int PRIORITY_OTHER = 2;
+
+    private final AccountJid account;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Queued or running tasks by users.
+     */
+    private final ConcurrentMap<String, SyncTask> tasks;
+
+    private final AtomicLong sequence;
+
+    /**
+     * Number of chats scheduled since sync was started.
+     */
+    private int total;
+
+    /**
+     * Number of synced chats since sync was started.
+     */
+    private int completed;
+
+    MamSyncScheduler(final AccountJid account) {
+        this.account = account;
+        tasks = new ConcurrentHashMap<>();
+        sequence = new AtomicLong();
+
+        executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "MAM sync for " + account);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues task by its priority.
+     * <p/>
+     * Executor passes task directly to the new thread while there are less threads than core size,
+     * so all core threads are started before, and every task goes through the priority queue.
+     */
+    private void execute(Task task) {
+        executor.prestartAllCoreThreads();
+        executor.execute(task);
+    }
+
+    /**
+     * Sets number of chats to be synced in parallel.
+     */
+    void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+        }
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Queues sync of the chat. Raises priority of already queued sync if needed.
+     *
+     * @param ignoreTime whether chat must be synced even if it was synced recently.
+     */
+    void schedule(AbstractChat chat, boolean ignoreTime) {
+        String key = chat.getUser().toString();
+        SyncTask task = new SyncTask(chat, ignoreTime, getPriority(chat));
+
+        while (true) {
+            SyncTask previous = tasks.putIfAbsent(key, task);
+            if (previous == null) {
+                break;
+            }
+            if (previous.priority <= task.priority || !executor.remove(previous)) {
+                // already queued with the same priority or running
+                return;
+            }
+            task = new SyncTask(chat, ignoreTime || previous.ignoreTime, task.priority);
+            if (tasks.replace(key, previous, task)) {
+                execute(task);
+                return;
+            }
+        }
+
+        synchronized (this) {
+            total++;
+        }
+        execute(task);
+    }
+
+    /**
+     * Queues account-wide sync to be run before any chat sync.
+     */
+    void scheduleCatchUp(final Runnable runnable) {
+        execute(new Task(PRIORITY_CATCH_UP, Long.MAX_VALUE) {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Exception e) {
+                    LogManager.exception(MamManager.LOG_TAG, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops queued syncs, e.g. on disconnect.
+     * Running syncs will stop on the first failed request.
+     */
+    void cancel() {
+        executor.getQueue().clear();
+        tasks.clear();
+        synchronized (this) {
+            total = 0;
+            completed = 0;
+        }
+    }
+
+    private int getPriority(AbstractChat chat) {
+        if (MessageManager.getInstance().isVisibleChat(chat)) {
+            return PRIORITY_VISIBLE;
+        }
+        if (chat.isActive()) {
+            return PRIORITY_ACTIVE;
+        }
+        return PRIORITY_OTHER;
+    }
+
+    private void onCompleted(SyncTask task) {
+        if (!tasks.remove(task.chat.getUser().toString(), task)) {
+            // cancelled
+            return;
+        }
+
+        int completed;
+        int total;
+        synchronized (this) {
+            this.completed++;
+            completed = this.completed;
+            total = this.total;
+            if (completed >= total) {
+                this.completed = 0;
+                this.total = 0;
+            }
+        }
+
+        if (completed >= total) {
+            LogManager.i(MamManager.LOG_TAG, "Last history synced for " + total + " chats of " + account);
+        }
+        EventBus.getDefault().post(new MamSyncProgressEvent(account, completed, total));
+    }
+
+    private abstract class Task implements Runnable, Comparable<Task> {
+
+        final int priority;
+
+        /**
+         * Time of the last message when task was created.
+         */
+        final long lastMessageTime;
+        final long number;
+
+        Task(int priority, long lastMessageTime) {
+            this.priority = priority;
+            this.lastMessageTime = lastMessageTime;
+            number = sequence.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(@NonNull Task another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            if (lastMessageTime != another.lastMessageTime) {
+                return lastMessageTime > another.lastMessageTime ? -1 : 1;
+            }
+            return number < another.number ? -1 : (number == another.number ? 0 : 1);
+        }
+    }
+
+    private class SyncTask extends Task {
+
+        final AbstractChat chat;
+        final boolean ignoreTime;
+
+        SyncTask(AbstractChat chat, boolean ignoreTime, int priority) {
+            super(priority, getLastMessageTime(chat));
+            this.chat = chat;
+            this.ignoreTime = ignoreTime;
+        }
+
+        @Override
+        public void run() {
+            try {
+                MamManager.getInstance().getLastHistory(chat, ignoreTime);
+            } catch (Exception e) {
+                LogManager.exception(MamManager.LOG_TAG, e);
+            } finally {
+                onCompleted(this);
+            }
+        }
+    }
+
+    private static long getLastMessageTime(AbstractChat chat) {
+        MessageItem lastMessage = chat.getLastMessage();
+        return lastMessage == null || lastMessage.getTimestamp() == null ? 0 : lastMessage.getTimestamp();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.xabber.android.data.extension.mam;
+
+import android.support.annotation.Nullable;
+
+import com.xabber.android.data.log.LogManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Stores fetched archive pages on the writer, so the next page can be requested
+ * while the previous one is being stored.
+ * <p/>
+ * At most one page waits to be stored. Each page stores its archive id together
+ * with its messages, so after a page failed to be stored the next pages are not
+ * submitted and archive id is not advanced past the failed page.
+ * Used from one thread only.
+ */
+class PageWriterQueue {
+
+    private static final String LOG_TAG = PageWriterQueue.class.getSimpleName();
+
+    private final ExecutorService writer;
+
+    @Nullable
+    private Future<Boolean> storing;
+
+    private boolean failed;
+
+    PageWriterQueue(ExecutorService writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Waits until the previous page is stored and submits the page.
+     *
+     * @param page stores messages and archive id of the page,
+     *             returns <code>false</code> if they were not stored.
+     * @return <code>false</code> if previous page was not stored, so the page
+     * was not submitted and loading must be stopped.
+     */
+    boolean submit(Callable<Boolean> page) throws InterruptedException {
+        if (!await()) {
+            return false;
+        }
+        storing = writer.submit(page);
+        return true;
+    }
+
+    /**
+     * Waits until the last submitted page is stored.
+     *
+     * @return whether all submitted pages were stored.
+     */
+    boolean await() throws InterruptedException {
+        if (failed) {
+            return false;
+        }
+        if (storing == null) {
+            return true;
+        }
+        try {
+            failed = !Boolean.TRUE.equals(storing.get());
+        } catch (ExecutionException e) {
+            LogManager.exception(LOG_TAG, e);
+            failed = true;
+        } finally {
+            storing = null;
+        }
+        return !failed;
+    }
+
+}
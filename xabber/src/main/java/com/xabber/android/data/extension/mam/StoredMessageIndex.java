@@ -0,0 +1,160 @@
+package com.xabber.android.data.extension.mam;
+
+import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.message.AbstractChat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.realm.Realm;
+import io.realm.RealmQuery;
+
+/**
+ * In-memory index of the stored chat messages around an archive page.
+ * <p/>
+ * Built with a single query for the whole page, so archived messages which are
+ * already stored can be dropped without querying database for each of them.
+ * Message is considered stored if there is message with the same stanza id and
+ * text, or with the same text and timestamp or delay timestamp differing less
+ * than {@link #SIMILAR_TIME_MILLIS}.
+ */
+class StoredMessageIndex {
+
+    static final long SIMILAR_TIME_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Stanza id and text keys.
+     */
+    private final Set<String> stanzaIds;
+
+    /**
+     * Timestamps and delay timestamps by time bucket and text keys.
+     */
+    private final Map<String, List<Long>> times;
+
+    /**
+     * Creates empty index, stored messages are added with {@link #add(MessageItem)}.
+     */
+    StoredMessageIndex() {
+        stanzaIds = new HashSet<>();
+        times = new HashMap<>();
+    }
+
+    /**
+     * Indexes stored messages of the chat which can match messages of the page.
+     */
+    static StoredMessageIndex create(Realm realm, AbstractChat chat, Collection<MessageItem> page) {
+        StoredMessageIndex index = new StoredMessageIndex();
+        if (page.isEmpty()) {
+            return index;
+        }
+
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        List<String> pageStanzaIds = new ArrayList<>(page.size());
+        for (MessageItem messageItem : page) {
+            start = Math.min(start, messageItem.getTimestamp());
+            end = Math.max(end, messageItem.getTimestamp());
+            Long delayTimestamp = messageItem.getDelayTimestamp();
+            if (delayTimestamp != null) {
+                start = Math.min(start, delayTimestamp);
+                end = Math.max(end, delayTimestamp);
+            }
+            if (messageItem.getStanzaId() != null) {
+                pageStanzaIds.add(messageItem.getStanzaId());
+            }
+        }
+        start -= SIMILAR_TIME_MILLIS;
+        end += SIMILAR_TIME_MILLIS;
+
+        RealmQuery<MessageItem> query = realm.where(MessageItem.class)
+                .equalTo(MessageItem.Fields.ACCOUNT, chat.getAccount().toString())
+                .equalTo(MessageItem.Fields.USER, chat.getUser().toString())
+                .beginGroup()
+                .between(MessageItem.Fields.TIMESTAMP, start, end)
+                .or()
+                .between(MessageItem.Fields.DELAY_TIMESTAMP, start, end);
+        if (!pageStanzaIds.isEmpty()) {
+            query.or().in(MessageItem.Fields.STANZA_ID,
+                    pageStanzaIds.toArray(new String[pageStanzaIds.size()]));
+        }
+
+        for (MessageItem messageItem : query.endGroup().findAll()) {
+            index.add(messageItem);
+        }
+        return index;
+    }
+
+    /**
+     * Adds message to the index.
+     */
+    void add(MessageItem messageItem) {
+        if (messageItem.getStanzaId() != null) {
+            stanzaIds.add(messageItem.getStanzaId() + "\n" + messageItem.getText());
+        }
+        if (messageItem.getTimestamp() != null) {
+            addTime(messageItem.getText(), messageItem.getTimestamp());
+        }
+        if (messageItem.getDelayTimestamp() != null) {
+            addTime(messageItem.getText(), messageItem.getDelayTimestamp());
+        }
+    }
+
+    /**
+     * @return whether the same message is stored.
+     */
+    boolean contains(MessageItem messageItem) {
+        // assume that Stanza ID could be not unique
+        if (messageItem.getStanzaId() != null
+                && stanzaIds.contains(messageItem.getStanzaId() + "\n" + messageItem.getText())) {
+            return true;
+        }
+        if (messageItem.getTimestamp() != null
+                && containsTime(messageItem.getText(), messageItem.getTimestamp())) {
+            return true;
+        }
+        return messageItem.getDelayTimestamp() != null
+                && containsTime(messageItem.getText(), messageItem.getDelayTimestamp());
+    }
+
+    private void addTime(String text, long time) {
+        String key = getTimeKey(text, getBucket(time));
+        List<Long> bucketTimes = times.get(key);
+        if (bucketTimes == null) {
+            bucketTimes = new ArrayList<>(1);
+            times.put(key, bucketTimes);
+        }
+        bucketTimes.add(time);
+    }
+
+    private boolean containsTime(String text, long time) {
+        long bucket = getBucket(time);
+        for (long neighbour = bucket - 1; neighbour <= bucket + 1; neighbour++) {
+            List<Long> bucketTimes = times.get(getTimeKey(text, neighbour));
+            if (bucketTimes == null) {
+                continue;
+            }
+            for (Long bucketTime : bucketTimes) {
+                if (Math.abs(bucketTime - time) <= SIMILAR_TIME_MILLIS) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long getBucket(long time) {
+        return time / SIMILAR_TIME_MILLIS;
+    }
+
+    private static String getTimeKey(String text, long bucket) {
+        return bucket + "\n" + text;
+    }
+
+}
@@ -25,9 +25,13 @@ import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
+import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.database.sqlite.RoomTable;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
+import com.xabber.android.data.extension.mam.MamManager;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.data.message.AbstractChat;
 import com.xabber.android.data.message.ChatAction;
@@ -45,6 +49,7 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.muc.HostedRoom;
+import org.jivesoftware.smackx.muc.MucEnterConfiguration;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 import org.jivesoftware.smackx.muc.MultiUserChatException;
 import org.jivesoftware.smackx.muc.MultiUserChatManager;
@@ -60,6 +65,10 @@ import org.jxmpp.stringprep.XmppStringprepException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import io.realm.Realm;
 
 /**
  * Manage multi user chats.
@@ -70,6 +79,12 @@ import java.util.Collections;
  */
 public class MUCManager implements OnLoadListener, OnPacketListener {
 
+    /**
+     * Subtracted from the last stored message time when requesting history,
+     * so messages are not lost because of clock difference with server.
+     */
+    private static final long HISTORY_SINCE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private static MUCManager instance;
 
     private final EntityNotificationProvider<RoomInvite> inviteProvider;
@@ -325,6 +340,40 @@ public class MUCManager implements OnLoadListener, OnPacketListener {
         return roomChat != null && roomChat.getState().inUse();
     }
 
+    /**
+     * Requests only history which is not stored yet: no history if the room is synced
+     * from the archive, otherwise history since the last stored message of the room.
+     */
+    private MucEnterConfiguration createEnterConfiguration(RoomChat roomChat, MultiUserChat multiUserChat,
+                                                           Resourcepart nickname, String password) {
+        MucEnterConfiguration.Builder builder = multiUserChat.getEnterConfigurationBuilder(nickname)
+                .withPassword(password);
+
+        if (MamManager.getInstance().isArchiveSynced(roomChat)) {
+            builder.requestNoHistory();
+            roomChat.onHistoryRequested("none");
+            MamManager.getInstance().requestLastHistory(roomChat);
+            return builder.build();
+        }
+
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        Number lastTimestamp = realm.where(MessageItem.class)
+                .equalTo(MessageItem.Fields.ACCOUNT, roomChat.getAccount().toString())
+                .equalTo(MessageItem.Fields.USER, roomChat.getUser().toString())
+                .isNull(MessageItem.Fields.ACTION)
+                .max(MessageItem.Fields.TIMESTAMP);
+        realm.close();
+
+        if (lastTimestamp == null) {
+            roomChat.onHistoryRequested("default");
+        } else {
+            Date since = new Date(lastTimestamp.longValue() - HISTORY_SINCE_MARGIN_MILLIS);
+            builder.requestHistorySince(since);
+            roomChat.onHistoryRequested("since " + since);
+        }
+        return builder.build();
+    }
+
     /**
      * Requests to join to the room.
      *
@@ -372,7 +421,7 @@ public class MUCManager implements OnLoadListener, OnPacketListener {
                     if (roomChat.getMultiUserChat() != multiUserChat) {
                         return;
                     }
-                    multiUserChat.join(nickname, password);
+                    multiUserChat.join(createEnterConfiguration(roomChat, multiUserChat, nickname, password));
                     Application.getInstance().runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
@@ -470,12 +519,17 @@ public class MUCManager implements OnLoadListener, OnPacketListener {
         }
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().namespace(PacketInterest.Kind.message, MUCUser.NAMESPACE);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (!(connection instanceof AccountItem)) {
             return;
         }
-        AccountJid account = ((AccountItem) connection).getAccount();
+        final AccountJid account = ((AccountItem) connection).getAccount();
         Jid from = stanza.getFrom();
         if (from == null || !(stanza instanceof Message)) {
             return;
@@ -489,28 +543,38 @@ public class MUCManager implements OnLoadListener, OnPacketListener {
             return;
         }
 
-        RoomChat roomChat = getRoomChat(account, from.asEntityBareJidIfPossible());
-        if (roomChat == null || !roomChat.getState().inUse()) {
-            UserJid inviter = null;
+        UserJid inviter = null;
+        try {
+            inviter = UserJid.from(mucUser.getInvite().getFrom());
+        } catch (UserJid.UserJidCreateException e) {
+            LogManager.exception(this, e);
+        }
+        if (inviter == null) {
             try {
-                inviter = UserJid.from(mucUser.getInvite().getFrom());
+                inviter = UserJid.from(from);
             } catch (UserJid.UserJidCreateException e) {
                 LogManager.exception(this, e);
             }
-            if (inviter == null) {
-                try {
-                    inviter = UserJid.from(from);
-                } catch (UserJid.UserJidCreateException e) {
-                    LogManager.exception(this, e);
+        }
+        final RoomInvite roomInvite;
+        try {
+            roomInvite = new RoomInvite(account, UserJid.from(from), inviter,
+                    mucUser.getInvite().getReason(), mucUser.getPassword());
+        } catch (UserJid.UserJidCreateException e) {
+            LogManager.exception(this, e);
+            return;
+        }
+        final EntityBareJid room = from.asEntityBareJidIfPossible();
+
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                RoomChat roomChat = getRoomChat(account, room);
+                if (roomChat == null || !roomChat.getState().inUse()) {
+                    inviteProvider.add(roomInvite, true);
                 }
             }
-            try {
-                inviteProvider.add(new RoomInvite(account, UserJid.from(from), inviter,
-                                mucUser.getInvite().getReason(), mucUser.getPassword()), true);
-            } catch (UserJid.UserJidCreateException e) {
-                LogManager.exception(this, e);
-            }
-        }
+        });
     }
 
     /**
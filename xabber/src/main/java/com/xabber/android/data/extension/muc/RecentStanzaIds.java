@@ -0,0 +1,118 @@
+package com.xabber.android.data.extension.muc;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Stanza ids of recent messages in the room.
+ * <p/>
+ * Last {@link #CAPACITY} ids are kept in ring buffer with set for exact
+ * lookups. All added ids are also put to Bloom filter, so absent ids are
+ * detected without database query. The filter is rebuilt from the ring
+ * buffer when too many ids were added to keep false positives rare.
+ */
+class RecentStanzaIds {
+
+    static final int CAPACITY = 512;
+
+    /**
+     * Number of ids after which Bloom filter is rebuilt.
+     */
+    private static final int MAX_FILTER_IDS = 4096;
+
+    /**
+     * Filter size in bits, ~10 bits per id.
+     */
+    private static final int FILTER_BITS = 1 << 16;
+
+    private static final int HASH_FUNCTIONS = 4;
+
+    private final String[] ring;
+
+    private final Set<String> recent;
+
+    private final long[] filter;
+
+    private int position;
+
+    private int filterIds;
+
+    RecentStanzaIds() {
+        ring = new String[CAPACITY];
+        recent = new HashSet<>();
+        filter = new long[FILTER_BITS / 64];
+    }
+
+    void add(String stanzaId) {
+        if (stanzaId == null || recent.contains(stanzaId)) {
+            return;
+        }
+
+        String evicted = ring[position];
+        if (evicted != null) {
+            recent.remove(evicted);
+        }
+        ring[position] = stanzaId;
+        position = (position + 1) % CAPACITY;
+        recent.add(stanzaId);
+
+        if (filterIds >= MAX_FILTER_IDS) {
+            rebuildFilter();
+        } else {
+            addToFilter(stanzaId);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if id was definitely not added.
+     */
+    boolean mightContain(String stanzaId) {
+        if (stanzaId == null) {
+            return false;
+        }
+        if (recent.contains(stanzaId)) {
+            return true;
+        }
+        int hash1 = stanzaId.hashCode();
+        int hash2 = mix(hash1);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            int bit = (hash1 + i * hash2) & (FILTER_BITS - 1);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToFilter(String stanzaId) {
+        int hash1 = stanzaId.hashCode();
+        int hash2 = mix(hash1);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            int bit = (hash1 + i * hash2) & (FILTER_BITS - 1);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+        filterIds++;
+    }
+
+    private void rebuildFilter() {
+        for (int i = 0; i < filter.length; i++) {
+            filter[i] = 0;
+        }
+        filterIds = 0;
+        for (String stanzaId : ring) {
+            if (stanzaId != null) {
+                addToFilter(stanzaId);
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash | 1;
+    }
+
+}
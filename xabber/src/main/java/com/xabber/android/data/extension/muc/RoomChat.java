@@ -22,6 +22,8 @@ import com.xabber.android.data.SettingsManager;
 import com.xabber.android.data.SettingsManager.ChatsShowStatusChange;
 import com.xabber.android.data.account.StatusMode;
 import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.MessageWriter;
+import com.xabber.android.data.database.StanzaIdLocator;
 import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
@@ -48,11 +50,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import io.realm.Realm;
+import io.realm.RealmQuery;
+import io.realm.RealmResults;
+import io.realm.Sort;
 
 /**
  * Chat room.
@@ -63,14 +70,38 @@ import io.realm.Realm;
  */
 public class RoomChat extends AbstractChat {
 
+    /**
+     * Number of history messages sent by most servers on join by default.
+     */
+    private static final int DEFAULT_HISTORY_STANZAS = 20;
+
+    /**
+     * Initial time range to look for the newest stanza ids.
+     */
+    private static final long RECENT_STANZA_IDS_SPAN = TimeUnit.DAYS.toMillis(1);
+
     /**
      * Information about occupants for STRING-PREPed resource.
      */
     private final Map<Resourcepart, Occupant> occupants;
+    /**
+     * Latest presences of occupants received while joining, before own presence.
+     */
+    private final Map<Resourcepart, Presence> joinPresences;
     /**
      * Invited user for the sent packet ID.
      */
     private final Map<String, UserJid> invites;
+    /**
+     * Stanza ids of recent messages, loaded on first message.
+     */
+    private RecentStanzaIds recentStanzaIds;
+    /**
+     * History requested on the last join, <code>null</code> when it was reported.
+     */
+    private String historyRequest;
+    private int historyMessages;
+    private int storedHistoryMessages;
     /**
      * Joining was requested from the UI.
      */
@@ -100,6 +131,7 @@ public class RoomChat extends AbstractChat {
         subject = "";
         multiUserChat = null;
         occupants = new HashMap<>();
+        joinPresences = new LinkedHashMap<>();
         invites = new HashMap<>();
     }
 
@@ -151,6 +183,7 @@ public class RoomChat extends AbstractChat {
         if (!state.inUse()) {
             multiUserChat = null;
             occupants.clear();
+            joinPresences.clear();
             invites.clear();
         }
         if (state == RoomState.available) {
@@ -231,6 +264,8 @@ public class RoomChat extends AbstractChat {
                 return true;
             }
             if (subject != null) {
+                // subject is sent after history
+                onHistoryReceived();
                 if (this.subject.equals(subject)) {
                     return true;
                 }
@@ -253,17 +288,31 @@ public class RoomChat extends AbstractChat {
                     notify = false;
                 }
 
-                Realm realm = MessageDatabaseManager.getInstance().getRealmUiThread();
-                final MessageItem sameMessage = realm
-                        .where(MessageItem.class)
-                        .equalTo(MessageItem.Fields.STANZA_ID, stanzaId)
-                        .findFirst();
+                String sameMessageId = StanzaIdLocator.getInstance().get(getAccount(), stanzaId);
+                // history messages can be stored before the room was loaded
+                if (sameMessageId == null && (stanzaId == null || delay != null
+                        || getRecentStanzaIds().mightContain(stanzaId))) {
+                    Realm realm = MessageDatabaseManager.getInstance().getRealmUiThread();
+                    MessageItem sameMessage = realm
+                            .where(MessageItem.class)
+                            .equalTo(MessageItem.Fields.ACCOUNT, getAccount().toString())
+                            .equalTo(MessageItem.Fields.USER, getUser().toString())
+                            .equalTo(MessageItem.Fields.STANZA_ID, stanzaId)
+                            .findFirst();
+                    if (sameMessage != null) {
+                        sameMessageId = sameMessage.getUniqueId();
+                    }
+                }
+
+                getRecentStanzaIds().add(stanzaId);
+                if (delay != null) {
+                    countHistoryMessage(sameMessageId != null);
+                }
 
                 // Server send our own message back
-                if (sameMessage != null) {
-                    realm.beginTransaction();
-                    sameMessage.setDelivered(true);
-                    realm.commitTransaction();
+                if (sameMessageId != null) {
+                    MessageWriter.getInstance().updateState(sameMessageId,
+                            new MessageWriter.MessageState().setDelivered());
                     return true;
                 }
 
@@ -276,6 +325,13 @@ public class RoomChat extends AbstractChat {
             }
         } else if (stanza instanceof Presence) {
             Presence presence = (Presence) stanza;
+            if (isJoining()) {
+                if (!isSelfPresence(resource, presence)) {
+                    onJoinPresence(resource, presence);
+                    return true;
+                }
+                applyJoinPresences();
+            }
             if (presence.getType() == Presence.Type.available) {
                 Occupant oldOccupant = occupants.get(resource);
                 Occupant newOccupant = createOccupant(resource, presence);
@@ -346,6 +402,132 @@ public class RoomChat extends AbstractChat {
         return nickname != null && resource != null && nickname.equals(resource);
     }
 
+    /**
+     * Remembers history requested on join, called before join request is sent.
+     */
+    synchronized void onHistoryRequested(String historyRequest) {
+        this.historyRequest = historyRequest;
+        historyMessages = 0;
+        storedHistoryMessages = 0;
+    }
+
+    private synchronized void countHistoryMessage(boolean stored) {
+        if (historyRequest == null) {
+            return;
+        }
+        historyMessages++;
+        if (stored) {
+            storedHistoryMessages++;
+        }
+    }
+
+    /**
+     * Logs how many history messages were received on join.
+     */
+    private synchronized void onHistoryReceived() {
+        if (historyRequest == null) {
+            return;
+        }
+        int avoided = historyRequest.equals("default")
+                ? 0 : Math.max(0, DEFAULT_HISTORY_STANZAS - historyMessages);
+        LogManager.i(this, "Joined " + user + " with history " + historyRequest
+                + ": received " + historyMessages + " history messages, "
+                + storedHistoryMessages + " already stored, about " + avoided + " avoided");
+        historyRequest = null;
+    }
+
+    /**
+     * Warms up with ids of the newest stored messages. Only the time range
+     * with enough messages is sorted, not the whole room history.
+     */
+    private RecentStanzaIds getRecentStanzaIds() {
+        if (recentStanzaIds == null) {
+            recentStanzaIds = new RecentStanzaIds();
+            Realm realm = MessageDatabaseManager.getInstance().getRealmUiThread();
+            Number oldest = getStanzaIdsQuery(realm).min(MessageItem.Fields.TIMESTAMP);
+            Number newest = getStanzaIdsQuery(realm).max(MessageItem.Fields.TIMESTAMP);
+            if (oldest == null || newest == null) {
+                return recentStanzaIds;
+            }
+
+            long span = RECENT_STANZA_IDS_SPAN;
+            RealmQuery<MessageItem> range;
+            while (true) {
+                range = getStanzaIdsQuery(realm);
+                if (newest.longValue() - span <= oldest.longValue()) {
+                    break;
+                }
+                range.greaterThanOrEqualTo(MessageItem.Fields.TIMESTAMP, newest.longValue() - span);
+                if (range.count() >= RecentStanzaIds.CAPACITY) {
+                    break;
+                }
+                span *= 2;
+            }
+
+            RealmResults<MessageItem> messageItems = range
+                    .findAllSorted(MessageItem.Fields.TIMESTAMP, Sort.DESCENDING);
+            int count = Math.min(messageItems.size(), RecentStanzaIds.CAPACITY);
+            for (int i = count - 1; i >= 0; i--) {
+                recentStanzaIds.add(messageItems.get(i).getStanzaId());
+            }
+        }
+        return recentStanzaIds;
+    }
+
+    private RealmQuery<MessageItem> getStanzaIdsQuery(Realm realm) {
+        return realm.where(MessageItem.class)
+                .equalTo(MessageItem.Fields.ACCOUNT, getAccount().toString())
+                .equalTo(MessageItem.Fields.USER, getUser().toString())
+                .isNotNull(MessageItem.Fields.STANZA_ID);
+    }
+
+    /**
+     * @return Whether own presence was not received yet.
+     */
+    private boolean isJoining() {
+        return state == RoomState.joining || state == RoomState.occupation
+                || state == RoomState.creating;
+    }
+
+    /**
+     * @return Whether presence is own presence in the room.
+     */
+    private boolean isSelfPresence(Resourcepart resource, Presence presence) {
+        if (isSelf(resource)) {
+            return true;
+        }
+        MUCUser mucUser = MUCUser.from(presence);
+        return mucUser != null && mucUser.getStatus() != null
+                && mucUser.getStatus().contains(MUCUser.Status.PRESENCE_TO_SELF_110);
+    }
+
+    /**
+     * Remembers occupant's presence received while joining without any notifications.
+     */
+    private void onJoinPresence(Resourcepart resource, Presence presence) {
+        if (resource == null) {
+            return;
+        }
+        if (presence.getType() == Presence.Type.available) {
+            joinPresences.put(resource, presence);
+        } else if (presence.getType() == Presence.Type.unavailable) {
+            joinPresences.remove(resource);
+        }
+    }
+
+    /**
+     * Fills occupants from presences received while joining.
+     * Listeners will be notified on own presence.
+     */
+    private void applyJoinPresences() {
+        for (Map.Entry<Resourcepart, Presence> entry : joinPresences.entrySet()) {
+            Occupant occupant = createOccupant(entry.getKey(), entry.getValue());
+            occupant.setJid(entry.getValue().getFrom());
+            occupants.put(entry.getKey(), occupant);
+        }
+        joinPresences.clear();
+    }
+
     /**
      * Informs that the invitee has declined the invitation.
      */
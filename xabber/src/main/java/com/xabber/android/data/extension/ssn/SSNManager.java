@@ -14,6 +14,7 @@
  */
 package com.xabber.android.data.extension.ssn;
 
+import com.xabber.android.data.Application;
 import com.xabber.android.data.NetworkException;
 import com.xabber.android.data.account.AccountItem;
 import com.xabber.android.data.account.AccountManager;
@@ -22,6 +23,7 @@ import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.TLSMode;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.NestedMap;
 import com.xabber.android.data.log.LogManager;
@@ -39,7 +41,9 @@ import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.impl.JidCreate;
 import org.jxmpp.stringprep.XmppStringprepException;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Stanza Session Negotiation.
@@ -81,36 +85,53 @@ public class SSNManager implements OnPacketListener, OnAccountRemovedListener {
         sessionOtrs.clear(accountItem.getAccount().toString());
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().namespace(PacketInterest.Kind.message, Feature.NAMESPACE);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
-        Jid from = stanza.getFrom();
+        final Jid from = stanza.getFrom();
         if (from == null) {
             return;
         }
         if (!(connection instanceof AccountItem) || !(stanza instanceof Message)) {
             return;
         }
-        AccountJid account = ((AccountItem) connection).getAccount();
+        final AccountJid account = ((AccountItem) connection).getAccount();
         Message message = (Message) stanza;
-        String session = message.getThread();
+        final String session = message.getThread();
         if (session == null) {
             return;
         }
+        final List<Feature> features = new ArrayList<>();
         for (ExtensionElement packetExtension : stanza.getExtensions()) {
-            if (packetExtension instanceof Feature) {
-                Feature feature = (Feature) packetExtension;
-                if (!feature.isValid()) {
-                    continue;
-                }
-                DataForm.Type dataFormType = feature.getDataFormType();
-                if (dataFormType == DataForm.Type.form) {
-                    onFormReceived(account, from, session, feature);
-                } else if (dataFormType == DataForm.Type.submit) {
-                    onSubmitReceived(account, from, session, feature);
-                } else if (dataFormType == DataForm.Type.result) {
-                    onResultReceived(account, session, feature);
+            if (packetExtension instanceof Feature && ((Feature) packetExtension).isValid()) {
+                features.add((Feature) packetExtension);
+            }
+        }
+        if (features.isEmpty()) {
+            return;
+        }
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Feature feature : features) {
+                    onFeatureReceived(account, from, session, feature);
                 }
             }
+        });
+    }
+
+    private void onFeatureReceived(AccountJid account, Jid from, String session, Feature feature) {
+        DataForm.Type dataFormType = feature.getDataFormType();
+        if (dataFormType == DataForm.Type.form) {
+            onFormReceived(account, from, session, feature);
+        } else if (dataFormType == DataForm.Type.submit) {
+            onSubmitReceived(account, from, session, feature);
+        } else if (dataFormType == DataForm.Type.result) {
+            onResultReceived(account, session, feature);
         }
     }
 
@@ -0,0 +1,243 @@
+package com.xabber.android.data.extension.vcard;
+
+import android.support.annotation.NonNull;
+
+import com.xabber.android.data.account.AccountItem;
+import com.xabber.android.data.account.AccountManager;
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.UserJid;
+import com.xabber.android.data.log.LogManager;
+import com.xabber.android.data.message.AbstractChat;
+import com.xabber.android.data.message.MessageManager;
+
+import org.jxmpp.jid.Jid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads vCards of one account on dedicated threads.
+ * <p/>
+ * Requests of the user go first, then contacts with visible or opened chats,
+ * then other contacts in order of requests. Only one request for the jid can
+ * be queued or running at a time. Background requests are paused while
+ * account is disconnected.
+ */
+class VCardFetcher {
+
+    /**
+     * Default number of vCards loaded in parallel.
+     */
+    static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    static final int PRIORITY_USER_REQUEST = 0;
+    static final int PRIORITY_VISIBLE = 1;
+    static final int PRIORITY_ACTIVE = 2;
+    static final int PRIORITY_OTHER = 3;
+
+    private final AccountJid account;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Queued, paused or running tasks by jids.
+     */
+    private final ConcurrentMap<Jid, FetchTask> tasks;
+
+    private final AtomicLong sequence;
+
+    /**
+     * Background tasks waiting for connection.
+     */
+    private final List<FetchTask> pausedTasks;
+
+    private boolean paused;
+
+    VCardFetcher(final AccountJid account) {
+        this.account = account;
+        tasks = new ConcurrentHashMap<>();
+        sequence = new AtomicLong();
+        pausedTasks = new ArrayList<>();
+
+        executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "vCard fetcher for " + account);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues request of the vCard. Raises priority of already queued request if needed.
+     * Must be called from the UI thread, as priority depends on the chats.
+     *
+     * @param userRequest whether vCard was requested by the user.
+     */
+    void fetch(Jid jid, boolean userRequest) {
+        FetchTask task = new FetchTask(jid, userRequest ? PRIORITY_USER_REQUEST : getPriority(jid));
+
+        while (true) {
+            FetchTask previous = tasks.putIfAbsent(jid, task);
+            if (previous == null) {
+                break;
+            }
+            if (previous.priority <= task.priority || !removeQueued(previous)) {
+                // already queued with the same priority or running
+                return;
+            }
+            if (tasks.replace(jid, previous, task)) {
+                break;
+            }
+        }
+
+        synchronized (this) {
+            if (paused && task.priority != PRIORITY_USER_REQUEST) {
+                pausedTasks.add(task);
+                return;
+            }
+        }
+        execute(task);
+    }
+
+    /**
+     * Parks queued background requests until {@link #resume()}, e.g. on disconnect.
+     */
+    void pause() {
+        List<Runnable> queued = new ArrayList<>();
+        synchronized (this) {
+            paused = true;
+            executor.getQueue().drainTo(queued);
+            for (Runnable runnable : queued) {
+                FetchTask task = (FetchTask) runnable;
+                if (task.priority == PRIORITY_USER_REQUEST) {
+                    execute(task);
+                } else {
+                    pausedTasks.add(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs requests parked by {@link #pause()}.
+     */
+    void resume() {
+        List<FetchTask> resumed;
+        synchronized (this) {
+            paused = false;
+            resumed = new ArrayList<>(pausedTasks);
+            pausedTasks.clear();
+        }
+        for (FetchTask task : resumed) {
+            execute(task);
+        }
+    }
+
+    /**
+     * Drops all queued and paused requests.
+     */
+    void cancel() {
+        synchronized (this) {
+            executor.getQueue().clear();
+            pausedTasks.clear();
+        }
+        tasks.clear();
+    }
+
+    /**
+     * Queues task by its priority.
+     * <p/>
+     * Executor passes task directly to the new thread while there are less threads than core size,
+     * so all core threads are started before, and every task goes through the priority queue.
+     */
+    private void execute(FetchTask task) {
+        executor.prestartAllCoreThreads();
+        executor.execute(task);
+    }
+
+    private boolean removeQueued(FetchTask task) {
+        synchronized (this) {
+            return pausedTasks.remove(task) || executor.remove(task);
+        }
+    }
+
+    private boolean isAuthenticated() {
+        AccountItem accountItem = AccountManager.getInstance().getAccount(account);
+        return accountItem != null && accountItem.getConnection().isAuthenticated();
+    }
+
+    private int getPriority(Jid jid) {
+        AbstractChat chat;
+        try {
+            chat = MessageManager.getInstance().getChat(account, UserJid.from(jid.asBareJid()));
+        } catch (UserJid.UserJidCreateException e) {
+            return PRIORITY_OTHER;
+        }
+        if (chat == null) {
+            return PRIORITY_OTHER;
+        }
+        if (MessageManager.getInstance().isVisibleChat(chat)) {
+            return PRIORITY_VISIBLE;
+        }
+        if (chat.isActive()) {
+            return PRIORITY_ACTIVE;
+        }
+        return PRIORITY_OTHER;
+    }
+
+    private class FetchTask implements Runnable, Comparable<FetchTask> {
+
+        final Jid jid;
+        final int priority;
+        final long number;
+
+        FetchTask(Jid jid, int priority) {
+            this.jid = jid;
+            this.priority = priority;
+            number = sequence.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            if (priority != PRIORITY_USER_REQUEST && !isAuthenticated()) {
+                pause();
+                synchronized (VCardFetcher.this) {
+                    pausedTasks.add(this);
+                }
+                return;
+            }
+
+            try {
+                VCardManager.getInstance().getVCard(account, jid);
+            } catch (Exception e) {
+                LogManager.exception(VCardFetcher.class.getSimpleName(), e);
+            } finally {
+                tasks.remove(jid, this);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull FetchTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return number < another.number ? -1 : (number == another.number ? 0 : 1);
+        }
+    }
+
+}
@@ -26,13 +26,14 @@ import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.account.listeners.OnAccountRemovedListener;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.ConnectionManager;
+import com.xabber.android.data.connection.listeners.OnDisconnectListener;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.database.sqlite.VCardTable;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.avatar.AvatarManager;
 import com.xabber.android.data.extension.blocking.BlockingManager;
-import com.xabber.android.data.extension.muc.MUCManager;
 import com.xabber.android.data.roster.OnRosterChangedListener;
 import com.xabber.android.data.roster.OnRosterReceivedListener;
 import com.xabber.android.data.roster.PresenceManager;
@@ -60,21 +61,36 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manage vCards and there requests.
+ * <p/>
+ * Requests are loaded by {@link VCardFetcher} of the account. Users without
+ * vCard are not requested in background for {@link #MISSING_VCARD_TTL}.
+ * Users whose vCard failed to load are not requested in background with
+ * exponential backoff.
  *
  * @author alexander.ivanov
  */
 public class VCardManager implements OnLoadListener, OnPacketListener,
-        OnRosterReceivedListener, OnAccountRemovedListener {
+        OnRosterReceivedListener, OnAccountRemovedListener, OnDisconnectListener {
+
+    /**
+     * Time during which failed vCard is not requested again in background.
+     */
+    private static final long MISSING_VCARD_TTL = TimeUnit.HOURS.toMillis(1);
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
     private static final StructuredName EMPTY_STRUCTURED_NAME = new StructuredName(
             null, null, null, null, null);
 
     /**
      * Nick and formatted names for the users.
+     * Read from the stanza dispatch threads.
      */
     private final Map<Jid, StructuredName> names;
 
@@ -84,6 +100,18 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
      */
     private final ArrayList<AccountJid> accountRequested;
 
+    private final Map<AccountJid, VCardFetcher> fetchers;
+
+    /**
+     * Time after which vCard can be requested again in background for the users.
+     */
+    private final Map<Jid, Long> missingVCards;
+
+    /**
+     * Number of failed requests in a row for the users.
+     */
+    private final Map<Jid, Integer> failedVCards;
+
     private static VCardManager instance;
 
     @SuppressWarnings("WeakerAccess")
@@ -100,8 +128,11 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
     }
 
     private VCardManager() {
-        names = new HashMap<>();
+        names = new ConcurrentHashMap<>();
         accountRequested = new ArrayList<>();
+        fetchers = new ConcurrentHashMap<>();
+        missingVCards = new ConcurrentHashMap<>();
+        failedVCards = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -141,7 +172,20 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
     }
 
     @Override
-    public void onRosterReceived(AccountItem accountItem) {
+    public void onRosterReceived(final AccountItem accountItem) {
+        getFetcher(accountItem.getAccount()).resume();
+
+        // priority of the requests depends on chats managed from the UI thread
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                requestRosterVCards(accountItem);
+            }
+        });
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    void requestRosterVCards(AccountItem accountItem) {
         AccountJid account = accountItem.getAccount();
         if (!accountRequested.contains(account) && SettingsManager.connectionLoadVCard()) {
             BareJid bareAddress = accountItem.getRealJid().asBareJid();
@@ -168,27 +212,78 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
     @Override
     public void onAccountRemoved(AccountItem accountItem) {
         accountRequested.remove(accountItem.getAccount());
+        VCardFetcher fetcher = fetchers.remove(accountItem.getAccount());
+        if (fetcher != null) {
+            fetcher.cancel();
+        }
+    }
+
+    @Override
+    public void onDisconnect(ConnectionItem connection) {
+        VCardFetcher fetcher = fetchers.get(connection.getAccount());
+        if (fetcher != null) {
+            fetcher.pause();
+        }
+    }
+
+    private synchronized VCardFetcher getFetcher(AccountJid account) {
+        VCardFetcher fetcher = fetchers.get(account);
+        if (fetcher == null) {
+            fetcher = new VCardFetcher(account);
+            fetchers.put(account, fetcher);
+        }
+        return fetcher;
     }
 
     public void requestByUser(final AccountJid account, final Jid jid) {
-        Application.getInstance().runInBackgroundUserRequest(new Runnable() {
-            @Override
-            public void run() {
-                getVCard(account, jid);
-            }
-        });
+        getFetcher(account).fetch(jid, true);
     }
 
     /**
-     * Requests vCard.
+     * Requests vCard unless user has no vCard or it recently failed to load.
      */
     public void request(final AccountJid account, final Jid jid) {
-        Application.getInstance().runInBackground(new Runnable() {
-            @Override
-            public void run() {
-                getVCard(account, jid);
-            }
-        });
+        if (isMissing(jid)) {
+            return;
+        }
+        getFetcher(account).fetch(jid, false);
+    }
+
+    private boolean isMissing(Jid jid) {
+        Long retryTime = missingVCards.get(jid);
+        if (retryTime == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() < retryTime) {
+            return true;
+        }
+        missingVCards.remove(jid, retryTime);
+        return false;
+    }
+
+    /**
+     * User has no vCard, so it is not requested in background for {@link #MISSING_VCARD_TTL}.
+     */
+    private void setMissing(Jid jid) {
+        failedVCards.remove(jid);
+        missingVCards.put(jid, System.currentTimeMillis() + MISSING_VCARD_TTL);
+    }
+
+    /**
+     * Request failed, so vCard is not requested in background for exponentially growing delay.
+     */
+    private void setFailed(Jid jid) {
+        Integer failed = failedVCards.get(jid);
+        int attempts = failed == null ? 1 : failed + 1;
+        failedVCards.put(jid, attempts);
+        long delay = Math.min(MISSING_VCARD_TTL, INITIAL_RETRY_DELAY_MILLIS << Math.min(attempts - 1, 16));
+        missingVCards.put(jid, System.currentTimeMillis() + delay);
+    }
+
+    private static boolean isEmpty(VCard vCard) {
+        return vCard.getAvatar() == null && vCard.getNickName() == null
+                && vCard.getField(VCardProperty.FN.name()) == null && vCard.getFirstName() == null
+                && vCard.getMiddleName() == null && vCard.getLastName() == null;
     }
 
     /**
@@ -249,6 +344,12 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
 
         }
         names.put(bareAddress, name);
+        if (vCard.getType() != Type.error && isEmpty(vCard)) {
+            setMissing(bareAddress);
+        } else {
+            failedVCards.remove(bareAddress);
+            missingVCards.remove(bareAddress);
+        }
 
         RosterContact rosterContact = RosterManager.getInstance()
                 .getRosterContact(account, bareAddress.asBareJid());
@@ -299,30 +400,32 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
         }
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().all(PacketInterest.Kind.presence);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (!(connection instanceof AccountItem)) {
             return;
         }
-        AccountJid account = connection.getAccount();
+        final AccountJid account = connection.getAccount();
         if (stanza instanceof Presence && ((Presence) stanza).getType() != Presence.Type.error) {
-            Jid from = stanza.getFrom();
+            final Jid from = stanza.getFrom();
 
             if (from == null) {
                 return;
             }
 
-            Jid addressForVcard = from;
-
-            if (MUCManager.getInstance().hasRoom(account, from.asEntityBareJidIfPossible())) {
-                addressForVcard = from;
-            }
-
             // Request vCard for new users
-            if (!names.containsKey(addressForVcard)) {
-                if (SettingsManager.connectionLoadVCard()) {
-                    request(account, addressForVcard);
-                }
+            if (!names.containsKey(from) && SettingsManager.connectionLoadVCard()) {
+                Application.getInstance().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        request(account, from);
+                    }
+                });
             }
         }
     }
@@ -358,7 +461,11 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
             vCardRequests.add(srcUser);
             try {
                 vCard = vCardManager.loadVCard(entityBareJid);
-            } catch (SmackException.NoResponseException | SmackException.NotConnectedException e) {
+            } catch (SmackException.NoResponseException e) {
+                LogManager.exception(this, e);
+                LogManager.w(this, "Error getting vCard: " + e.getMessage());
+                setFailed(srcUser);
+            } catch (SmackException.NotConnectedException e) {
                 LogManager.exception(this, e);
                 LogManager.w(this, "Error getting vCard: " + e.getMessage());
             } catch (XMPPException.XMPPErrorException e ) {
@@ -366,7 +473,10 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
                 LogManager.w(this, "XMPP error getting vCard: " + e.getMessage() + e.getXMPPError());
 
                 if (e.getXMPPError().getCondition() == XMPPError.Condition.item_not_found) {
+                    // stored as empty vCard
                     vCard = new VCard();
+                } else {
+                    setFailed(srcUser);
                 }
 
             } catch (ClassCastException e) {
@@ -374,6 +484,7 @@ public class VCardManager implements OnLoadListener, OnPacketListener,
                 // http://stackoverflow.com/questions/31498721/error-loading-vcard-information-using-smack-emptyresultiq-cannot-be-cast-to-or
                 LogManager.w(this, "ClassCastException: " + e.getMessage());
                 //vCard = new VCard();
+                setFailed(srcUser);
             } catch (InterruptedException e) {
                 LogManager.exception(this, e);
             }
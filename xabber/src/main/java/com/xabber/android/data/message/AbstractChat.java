@@ -22,6 +22,8 @@ import com.xabber.android.data.NetworkException;
 import com.xabber.android.data.SettingsManager;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.MessageWriter;
+import com.xabber.android.data.database.StanzaIdLocator;
 import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.database.messagerealm.SyncInfo;
 import com.xabber.android.data.entity.AccountJid;
@@ -35,7 +37,6 @@ import com.xabber.android.data.message.chat.ChatManager;
 import com.xabber.android.data.notification.NotificationManager;
 
 import org.greenrobot.eventbus.EventBus;
-import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Message.Type;
@@ -47,11 +48,11 @@ import org.jxmpp.jid.parts.Resourcepart;
 
 import java.io.File;
 import java.util.Date;
-import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import io.realm.Realm;
-import io.realm.RealmChangeListener;
+import io.realm.RealmQuery;
 import io.realm.RealmResults;
 import io.realm.Sort;
 
@@ -60,13 +61,23 @@ import io.realm.Sort;
  *
  * @author alexander.ivanov
  */
-public abstract class AbstractChat extends BaseEntity implements RealmChangeListener<RealmResults<MessageItem>> {
+public abstract class AbstractChat extends BaseEntity {
 
     /**
      * Number of messages from history to be shown for context purpose.
      */
     public static final int PRELOADED_MESSAGES = 50;
 
+    /**
+     * Number of messages to be added to the loaded window on each extension.
+     */
+    public static final int MESSAGES_WINDOW_STEP = 100;
+
+    /**
+     * Initial time range to look for messages of the window.
+     */
+    private static final long MESSAGES_WINDOW_SPAN = TimeUnit.DAYS.toMillis(1);
+
     /**
      * Whether chat is open and should be displayed as active chat.
      */
@@ -96,8 +107,26 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
 
     private Date lastSyncedTime;
     private RealmResults<SyncInfo> syncInfo;
+    /**
+     * Last stored message including actions.
+     */
     private MessageItem lastMessage;
+    /**
+     * Last stored message without action.
+     */
+    private MessageItem lastTextMessage;
+    /**
+     * Loaded messages of the opened chat or <code>null</code>.
+     */
     private RealmResults<MessageItem> messages;
+    /**
+     * Timestamp of the oldest loaded message.
+     */
+    private long messagesWindowStart;
+    /**
+     * Whether loaded messages include the whole local history.
+     */
+    private boolean messagesWindowComplete;
 
     protected AbstractChat(@NonNull final AccountJid account, @NonNull final UserJid user, boolean isPrivateMucChat) {
         super(account, isPrivateMucChat ? user : user.getBareUserJid());
@@ -112,7 +141,7 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
         Application.getInstance().runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                getMessages();
+                reloadLastMessage();
             }
         });
     }
@@ -160,20 +189,118 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
         return user.toString();
     }
 
+    /**
+     * Loads the last messages of the chat.
+     * Older messages can be added with {@link #loadOlderMessages()}.
+     * Must be called from UI thread.
+     *
+     * @return live results sorted by timestamp.
+     */
     public RealmResults<MessageItem> getMessages() {
         if (messages == null) {
-            messages = MessageDatabaseManager.getChatMessages(
-                    MessageDatabaseManager.getInstance().getRealmUiThread(),
-                    account,
-                    user);
-            updateLastMessage();
+            extendMessagesWindow(null, PRELOADED_MESSAGES * 2);
+            messages = loadMessagesWindow();
+        }
 
-            messages.addChangeListener(this);
+        return messages;
+    }
+
+    /**
+     * Extends loaded messages with older ones.
+     * Must be called from UI thread.
+     *
+     * @return new live results or <code>null</code> if the whole local history is already loaded.
+     */
+    @Nullable
+    public RealmResults<MessageItem> loadOlderMessages() {
+        if (messages == null) {
+            return getMessages();
+        }
+        if (messagesWindowComplete) {
+            return null;
         }
 
+        extendMessagesWindow(messagesWindowStart, MESSAGES_WINDOW_STEP);
+        messages = loadMessagesWindow();
         return messages;
     }
 
+    /**
+     * @return whether loaded messages include the whole local history.
+     */
+    public boolean isAllMessagesLoaded() {
+        return messages != null && messagesWindowComplete;
+    }
+
+    /**
+     * Forgets loaded messages when chat is no longer displayed.
+     */
+    public void releaseMessages() {
+        messages = null;
+        messagesWindowComplete = false;
+    }
+
+    /**
+     * Moves the window start to include at least count messages older than the end.
+     * Time range before the end is doubled until it has enough messages, so only
+     * messages of the found range are sorted.
+     *
+     * @param end timestamp of the oldest loaded message or <code>null</code> to
+     *            start from the newest message.
+     */
+    private void extendMessagesWindow(@Nullable Long end, int count) {
+        Realm realm = MessageDatabaseManager.getInstance().getRealmUiThread();
+
+        Number oldest = MessageDatabaseManager.getChatMessagesQuery(realm, account, user)
+                .min(MessageItem.Fields.TIMESTAMP);
+        long upper;
+        if (end != null) {
+            upper = end;
+        } else {
+            Number newest = MessageDatabaseManager.getChatMessagesQuery(realm, account, user)
+                    .max(MessageItem.Fields.TIMESTAMP);
+            upper = newest == null ? 0 : newest.longValue() + 1;
+        }
+
+        long span = MESSAGES_WINDOW_SPAN;
+        while (true) {
+            boolean whole = oldest == null || upper - span <= oldest.longValue();
+            RealmQuery<MessageItem> range = MessageDatabaseManager.getChatMessagesQuery(realm, account, user)
+                    .lessThan(MessageItem.Fields.TIMESTAMP, upper);
+            if (!whole) {
+                range.greaterThanOrEqualTo(MessageItem.Fields.TIMESTAMP, upper - span);
+            }
+            long found = range.count();
+            if (found > count || (found == count && !whole)) {
+                Long start = range.findAllSorted(MessageItem.Fields.TIMESTAMP, Sort.DESCENDING)
+                        .get(count - 1).getTimestamp();
+                if (start != null) {
+                    messagesWindowStart = start;
+                    messagesWindowComplete = false;
+                    return;
+                }
+            }
+            if (whole) {
+                break;
+            }
+            span *= 2;
+        }
+        messagesWindowComplete = true;
+    }
+
+    /**
+     * Messages newer than the window start always match the query,
+     * so incoming messages are added to the results without reload.
+     */
+    private RealmResults<MessageItem> loadMessagesWindow() {
+        RealmQuery<MessageItem> query = MessageDatabaseManager.getChatMessagesQuery(
+                MessageDatabaseManager.getInstance().getRealmUiThread(), account, user);
+        if (!messagesWindowComplete) {
+            query.greaterThanOrEqualTo(MessageItem.Fields.TIMESTAMP, messagesWindowStart);
+        }
+        return query.findAllSorted(MessageItem.Fields.TIMESTAMP, Sort.ASCENDING);
+    }
+
     public RealmResults<SyncInfo> getSyncInfo() {
         if (syncInfo == null) {
             syncInfo = MessageDatabaseManager.getInstance()
@@ -253,20 +380,26 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
                                            boolean notify, final boolean encrypted, final boolean offline, final String stanzaId) {
         final MessageItem messageItem = createMessageItem(resource, text, action, delayTimestamp,
                 incoming, notify, encrypted, offline, stanzaId);
-        saveMessageItem(messageItem);
-        EventBus.getDefault().post(new NewMessageEvent());
-    }
-
-    public void saveMessageItem(final MessageItem messageItem) {
-        MessageDatabaseManager.getInstance().getRealmUiThread()
-                .executeTransaction(new Realm.Transaction() {
+        saveMessageItem(messageItem, new MessageWriter.OnCommittedListener() {
             @Override
-            public void execute(Realm realm) {
-                realm.copyToRealm(messageItem);
+            public void onCommitted(boolean success) {
+                if (success) {
+                    EventBus.getDefault().post(new NewMessageEvent(account, user));
+                }
             }
         });
     }
 
+    /**
+     * Queues message to be stored.
+     *
+     * @param onCommitted called from the writer thread after message was stored or failed.
+     */
+    public void saveMessageItem(final MessageItem messageItem,
+                                @Nullable MessageWriter.OnCommittedListener onCommitted) {
+        MessageWriter.getInstance().save(messageItem, onCommitted);
+    }
+
     protected MessageItem createMessageItem(Resourcepart resource, String text, ChatAction action,
                                             Date delayTimestamp, boolean incoming, boolean notify,
                                             boolean encrypted, boolean offline, String stanzaId) {
@@ -388,26 +521,69 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
         return this.user.equals(jid);
     }
 
+    /**
+     * @return last message without action or last action if there is no messages.
+     */
     @Nullable
     public synchronized MessageItem getLastMessage() {
+        if (lastTextMessage != null) {
+            return lastTextMessage;
+        }
         return lastMessage;
     }
 
-    private void updateLastMessage() {
-        if (messages.isValid() && messages.isLoaded() && !messages.isEmpty()) {
-            List<MessageItem> textMessages = MessageDatabaseManager.getInstance()
-                    .getRealmUiThread()
-                    .copyFromRealm(messages.where().isNull(MessageItem.Fields.ACTION).findAll());
+    /**
+     * Reads last messages from the database.
+     * Should be called from UI thread when messages were changed not by {@link MessageWriter}.
+     */
+    public void reloadLastMessage() {
+        Realm realm = MessageDatabaseManager.getInstance().getRealmUiThread();
+        MessageItem message = findLastMessage(
+                MessageDatabaseManager.getChatMessagesQuery(realm, account, user));
+        MessageItem textMessage = findLastMessage(
+                MessageDatabaseManager.getChatMessagesQuery(realm, account, user)
+                        .isNull(MessageItem.Fields.ACTION));
+
+        synchronized (this) {
+            lastMessage = message == null ? null : realm.copyFromRealm(message);
+            lastTextMessage = textMessage == null ? null : realm.copyFromRealm(textMessage);
+        }
+    }
 
-            if (!textMessages.isEmpty())
-                lastMessage = textMessages.get(textMessages.size() - 1);
-            else
-                lastMessage = MessageDatabaseManager.getInstance()
-                    .getRealmUiThread()
-                    .copyFromRealm(messages.last());
-        } else {
-            lastMessage = null;
+    @Nullable
+    private static MessageItem findLastMessage(RealmQuery<MessageItem> query) {
+        Number timestamp = query.max(MessageItem.Fields.TIMESTAMP);
+        if (timestamp == null) {
+            return null;
         }
+        return query.equalTo(MessageItem.Fields.TIMESTAMP, timestamp.longValue()).findFirst();
+    }
+
+    /**
+     * Updates last messages with stored message.
+     * Messages are filtered the same way as on {@link #reloadLastMessage()}.
+     *
+     * @param messageItem unmanaged copy of the message from this chat.
+     */
+    synchronized void onMessageStored(MessageItem messageItem) {
+        if (!MessageDatabaseManager.isChatMessage(messageItem)) {
+            return;
+        }
+        if (isLastOrNewer(lastMessage, messageItem)) {
+            lastMessage = messageItem;
+        }
+        if (messageItem.getAction() == null && isLastOrNewer(lastTextMessage, messageItem)) {
+            lastTextMessage = messageItem;
+        }
+    }
+
+    private static boolean isLastOrNewer(@Nullable MessageItem last, MessageItem messageItem) {
+        if (last == null || last.getUniqueId().equals(messageItem.getUniqueId())) {
+            return true;
+        }
+        Long timestamp = messageItem.getTimestamp();
+        Long lastTimestamp = last.getTimestamp();
+        return timestamp != null && (lastTimestamp == null || timestamp >= lastTimestamp);
     }
 
     /**
@@ -444,38 +620,25 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
     }
 
 
+    /**
+     * Passes unsent messages of the chat to {@link MessageOutbox}.
+     */
     public void sendMessages() {
-        Application.getInstance().runInBackgroundUserRequest(new Runnable() {
-            @Override
-            public void run() {
-                Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-
-                RealmResults<MessageItem> messagesToSend = realm.where(MessageItem.class)
-                        .equalTo(MessageItem.Fields.ACCOUNT, account.toString())
-                        .equalTo(MessageItem.Fields.USER, user.toString())
-                        .equalTo(MessageItem.Fields.SENT, false)
-                        .findAllSorted(MessageItem.Fields.TIMESTAMP, Sort.ASCENDING);
-
-                realm.beginTransaction();
-
-                for (final MessageItem messageItem : messagesToSend) {
-                    if (!sendMessage(messageItem)) {
-                        break;
-                    }
-                }
-                realm.commitTransaction();
-
-                realm.close();
-            }
-        });
+        MessageOutbox.getInstance().send(account, user);
     }
 
     protected boolean canSendMessage() {
         return true;
     }
 
-    @SuppressWarnings("WeakerAccess")
-    boolean sendMessage(MessageItem messageItem) {
+    /**
+     * Sends message and fills its sending state.
+     * Called by {@link MessageOutbox} outside of transactions, so message item is unmanaged.
+     *
+     * @param acknowledgedListener called when Stream Management acknowledgement is received.
+     * @return whether message was passed to the connection.
+     */
+    boolean sendMessage(MessageItem messageItem, StanzaListener acknowledgedListener) {
         String text = prepareText(messageItem.getText());
         messageItem.setEncrypted(OTRManager.getInstance().isEncrypted(text));
         Long timestamp = messageItem.getTimestamp();
@@ -500,29 +663,13 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
             if (delayTimestamp != null) {
                 message.addExtension(new DelayInformation(delayTimestamp));
             }
+            // message is sent again after reconnection without acknowledgement
+            if (messageItem.getStanzaId() != null) {
+                message.setStanzaId(messageItem.getStanzaId());
+            }
 
-            final String messageId = messageItem.getUniqueId();
             try {
-                StanzaSender.sendStanza(account, message, new StanzaListener() {
-                    @Override
-                    public void processStanza(Stanza packet) throws SmackException.NotConnectedException {
-                        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-                        realm.executeTransaction(new Realm.Transaction() {
-                                @Override
-                                public void execute(Realm realm) {
-                                    MessageItem acknowledgedMessage = realm
-                                            .where(MessageItem.class)
-                                            .equalTo(MessageItem.Fields.UNIQUE_ID, messageId)
-                                            .findFirst();
-
-                                    if (acknowledgedMessage != null) {
-                                        acknowledgedMessage.setAcknowledged(true);
-                                    }
-                                }
-                            });
-                        realm.close();
-                    }
-                });
+                StanzaSender.sendStanza(account, message, acknowledgedListener);
             } catch (NetworkException e) {
                 return false;
             }
@@ -533,6 +680,7 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
             messageItem.setErrorDescription("Internal error: message is null");
         } else {
             messageItem.setStanzaId(message.getStanzaId());
+            StanzaIdLocator.getInstance().put(account, message.getStanzaId(), messageItem.getUniqueId());
         }
 
         if (delayTimestamp != null) {
@@ -596,11 +744,6 @@ public abstract class AbstractChat extends BaseEntity implements RealmChangeList
         return isPrivateMucChatAccepted;
     }
 
-    @Override
-    public void onChange(RealmResults<MessageItem> messageItems) {
-        updateLastMessage();
-    }
-
     public int getUnreadMessageCount() {
         return unreadMessageCount;
     }
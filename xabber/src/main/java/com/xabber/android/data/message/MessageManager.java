@@ -15,6 +15,7 @@
 package com.xabber.android.data.message;
 
 import android.os.Environment;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.xabber.android.R;
@@ -32,7 +33,10 @@ import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnDisconnectListener;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.MessageWriter;
+import com.xabber.android.data.database.OnMessagesCommittedListener;
 import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.BaseEntity;
@@ -57,6 +61,7 @@ import com.xabber.android.utils.StringUtils;
 import org.greenrobot.eventbus.EventBus;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.carbons.packet.CarbonExtension;
 import org.jivesoftware.smackx.muc.packet.MUCUser;
@@ -72,6 +77,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.realm.Realm;
 import io.realm.RealmResults;
@@ -85,7 +92,7 @@ import io.realm.RealmResults;
  */
 public class MessageManager implements OnLoadListener, OnPacketListener, OnDisconnectListener,
         OnAccountRemovedListener, OnAccountDisabledListener, OnRosterReceivedListener,
-        OnStatusChangeListener {
+        OnStatusChangeListener, OnMessagesCommittedListener {
 
     private static MessageManager instance;
 
@@ -95,6 +102,10 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
      * Registered chats for bareAddresses in accounts.
      */
     private final NestedMap<AbstractChat> chats;
+    /**
+     * Keys of registered chats, can be read from any thread.
+     */
+    private final Set<String> chatKeys;
     /**
      * Visible chat.
      * <p/>
@@ -112,6 +123,7 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
 
     private MessageManager() {
         chats = new NestedMap<>();
+        chatKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
         mucPrivateChatRequestProvider = new EntityNotificationProvider<>
                 (R.drawable.ic_stat_muc_private_chat_request_white_24dp);
@@ -122,25 +134,21 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
     public void onLoad() {
         Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
 
-        realm.executeTransaction(new Realm.Transaction() {
-            @Override
-            public void execute(Realm realm) {
-                RealmResults<MessageItem> messagesToSend = realm.where(MessageItem.class)
-                        .equalTo(MessageItem.Fields.SENT, false)
-                        .findAll();
+        // chats will pass their unsent messages to the outbox when connection is complete
+        RealmResults<MessageItem> messagesToSend = realm.where(MessageItem.class)
+                .equalTo(MessageItem.Fields.SENT, false)
+                .findAll();
 
-                for (MessageItem messageItem : messagesToSend) {
-                    AccountJid account = messageItem.getAccount();
-                    UserJid user = messageItem.getUser();
+        for (MessageItem messageItem : messagesToSend) {
+            AccountJid account = messageItem.getAccount();
+            UserJid user = messageItem.getUser();
 
-                    if (account != null && user != null) {
-                        if (getChat(account, user) == null) {
-                            createChat(account, user);
-                        }
-                    }
+            if (account != null && user != null) {
+                if (getChat(account, user) == null) {
+                    createChat(account, user);
                 }
             }
-        });
+        }
         realm.close();
 
         NotificationManager.getInstance().registerNotificationProvider(mucPrivateChatRequestProvider);
@@ -222,6 +230,7 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
             throw new IllegalStateException();
         }
         chats.put(chat.getAccount().toString(), chat.getUser().toString(), chat);
+        chatKeys.add(getChatKey(chat.getAccount().toString(), chat.getUser().toString()));
     }
 
     /**
@@ -233,6 +242,25 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
         chat.closeChat();
         LogManager.i(this, "removeChat " + chat.getUser());
         chats.remove(chat.getAccount().toString(), chat.getUser().toString());
+        chatKeys.remove(getChatKey(chat.getAccount().toString(), chat.getUser().toString()));
+    }
+
+    private static String getChatKey(String account, String user) {
+        return account + "\n" + user;
+    }
+
+    /**
+     * @return Whether chat is registered. Can be called from any thread.
+     */
+    private boolean hasChat(AccountJid account, Jid user) {
+        return chatKeys.contains(getChatKey(account.toString(), user.toString()));
+    }
+
+    private void clearChats(AccountJid account) {
+        for (String user : chats.getNested(account.toString()).keySet()) {
+            chatKeys.remove(getChatKey(account.toString(), user));
+        }
+        chats.clear(account.toString());
     }
 
     /**
@@ -248,16 +276,14 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
     }
 
     private void sendMessage(final String text, final AbstractChat chat) {
-        MessageDatabaseManager.getInstance()
-                .getRealmUiThread().executeTransaction(new Realm.Transaction() {
+        final boolean canSendMessage = chat.canSendMessage();
+        MessageWriter.getInstance().save(chat.createNewMessageItem(text), new MessageWriter.OnCommittedListener() {
             @Override
-            public void execute(Realm realm) {
-                MessageItem newMessageItem = chat.createNewMessageItem(text);
-                realm.copyToRealm(newMessageItem);
+            public void onCommitted(boolean success) {
+                if (success && canSendMessage)
+                    chat.sendMessages();
             }
         });
-        if (chat.canSendMessage())
-            chat.sendMessages();
     }
 
     public String createFileMessage(AccountJid account, UserJid user, File file) {
@@ -273,46 +299,30 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
             return;
         }
 
-        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-
-        realm.executeTransaction(new Realm.Transaction() {
+        MessageWriter.getInstance().update(messageId, new MessageWriter.MessageUpdate() {
             @Override
-            public void execute(Realm realm) {
-                MessageItem messageItem = realm.where(MessageItem.class)
-                        .equalTo(MessageItem.Fields.UNIQUE_ID, messageId)
-                        .findFirst();
-
-                if (messageItem != null) {
-                    messageItem.setText(url);
-                    messageItem.setSent(false);
-                    messageItem.setInProgress(false);
-                }
+            public void update(@NonNull MessageItem messageItem) {
+                messageItem.setText(url);
+                messageItem.setSent(false);
+                messageItem.setInProgress(false);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                chat.sendMessages();
             }
         });
-
-        realm.close();
-        chat.sendMessages();
     }
 
     public void updateMessageWithError(final String messageId, final String errorDescription) {
-        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-
-        realm.executeTransaction(new Realm.Transaction() {
+        MessageWriter.getInstance().update(messageId, new MessageWriter.MessageUpdate() {
             @Override
-            public void execute(Realm realm) {
-                MessageItem messageItem = realm.where(MessageItem.class)
-                        .equalTo(MessageItem.Fields.UNIQUE_ID, messageId)
-                        .findFirst();
-
-                if (messageItem != null) {
-                    messageItem.setError(true);
-                    messageItem.setErrorDescription(errorDescription);
-                    messageItem.setInProgress(false);
-                }
+            public void update(@NonNull MessageItem messageItem) {
+                messageItem.setError(true);
+                messageItem.setErrorDescription(errorDescription);
+                messageItem.setInProgress(false);
             }
         });
-
-        realm.close();
     }
 
     /**
@@ -406,23 +416,7 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
             final AccountJid account = chat.getAccount();
             final UserJid user = chat.getUser();
 
-            MessageDatabaseManager.getInstance()
-                    .getRealmUiThread().executeTransactionAsync(new Realm.Transaction() {
-                @Override
-                public void execute(Realm realm) {
-                    RealmResults<MessageItem> unreadMessages = realm.where(MessageItem.class)
-                            .equalTo(MessageItem.Fields.ACCOUNT, account.toString())
-                            .equalTo(MessageItem.Fields.USER, user.toString())
-                            .equalTo(MessageItem.Fields.READ, false)
-                            .findAll();
-
-                    List<MessageItem> unreadMessagesList = new ArrayList<>(unreadMessages);
-
-                    for (MessageItem messageItem : unreadMessagesList) {
-                        messageItem.setRead(true);
-                    }
-                }
-            });
+            MessageWriter.getInstance().markAsRead(account, user);
         }
         this.visibleChat = chat;
     }
@@ -438,7 +432,7 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
      * @param chat
      * @return Whether specified chat is currently visible.
      */
-    boolean isVisibleChat(AbstractChat chat) {
+    public boolean isVisibleChat(AbstractChat chat) {
         return visibleChat == chat;
     }
 
@@ -459,6 +453,11 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
                         .equalTo(MessageItem.Fields.USER, user.toString())
                         .findAll().deleteAllFromRealm();
             }
+        }, new Realm.Transaction.OnSuccess() {
+            @Override
+            public void onSuccess() {
+                reloadLastMessage(account, user);
+            }
         });
     }
 
@@ -475,9 +474,12 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
                 MessageItem messageItem = realm.where(MessageItem.class)
                         .equalTo(MessageItem.Fields.UNIQUE_ID, messageItemId).findFirst();
                 if (messageItem != null) {
+                    AccountJid account = messageItem.getAccount();
+                    UserJid user = messageItem.getUser();
                     realm.beginTransaction();
                     messageItem.deleteFromRealm();
                     realm.commitTransaction();
+                    reloadLastMessage(account, user);
                 }
 
                 realm.close();
@@ -486,6 +488,38 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
     }
 
 
+    /**
+     * Requests chat to read its last message from the database.
+     * Should be called after chat messages were changed not by {@link MessageWriter}.
+     */
+    public void reloadLastMessage(final AccountJid account, final UserJid user) {
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                AbstractChat chat = chats.get(account.toString(), user.toString());
+                if (chat != null) {
+                    chat.reloadLastMessage();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onMessagesCommitted(final Collection<MessageItem> messageItems) {
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (MessageItem messageItem : messageItems) {
+                    AbstractChat chat = chats.get(messageItem.getAccount().toString(),
+                            messageItem.getUser().toString());
+                    if (chat != null) {
+                        chat.onMessageStored(messageItem);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Called on action settings change.
      */
@@ -494,11 +528,21 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
     }
 
     @Override
-    public void onStanza(ConnectionItem connection, Stanza stanza) {
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest()
+                .all(PacketInterest.Kind.message)
+                .all(PacketInterest.Kind.presence);
+    }
+
+    /**
+     * Drops stanzas which can't change any chat and passes others to the UI thread.
+     */
+    @Override
+    public void onStanza(ConnectionItem connection, final Stanza stanza) {
         if (stanza.getFrom() == null) {
             return;
         }
-        AccountJid account = connection.getAccount();
+        final AccountJid account = connection.getAccount();
 
         final UserJid user;
         try {
@@ -506,15 +550,31 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
         } catch (UserJid.UserJidCreateException e) {
             return;
         }
-        boolean processed = false;
-        for (AbstractChat chat : chats.getNested(account.toString()).values()) {
-            if (chat.onPacket(user, stanza, false)) {
-                processed = true;
-                break;
+
+        if (!hasChat(account, user.getJid()) && !hasChat(account, stanza.getFrom())) {
+            if (stanza instanceof Presence) {
+                return;
+            }
+            if (stanza instanceof Message && ((Message) stanza).getBody() == null) {
+                return;
+            }
+        }
+
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                processStanza(account, user, stanza);
             }
+        });
+    }
+
+    private void processStanza(AccountJid account, UserJid user, Stanza stanza) {
+        if (stanza instanceof Message && onPrivateMucChatMessage(account, (Message) stanza)) {
+            return;
         }
 
         final AbstractChat chat = getChat(account, user);
+        boolean processed = chat != null && chat.onPacket(user, stanza, false);
 
         if (chat != null && stanza instanceof Message) {
             if (chat.isPrivateMucChat() && !chat.isPrivateMucChatAccepted()) {
@@ -614,6 +674,37 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
         }
     }
 
+    /**
+     * Passes private message from the room occupant to the existed private chat.
+     *
+     * @return Whether message was processed.
+     */
+    private boolean onPrivateMucChatMessage(AccountJid account, Message message) {
+        if (message.getType() != Message.Type.chat) {
+            return false;
+        }
+        FullJid fullJid = message.getFrom().asFullJidIfPossible();
+        if (fullJid == null) {
+            return false;
+        }
+        UserJid user;
+        try {
+            user = UserJid.from(fullJid);
+        } catch (UserJid.UserJidCreateException e) {
+            return false;
+        }
+        AbstractChat chat = chats.get(account.toString(), user.toString());
+        if (chat == null || !chat.isPrivateMucChat()) {
+            return false;
+        }
+        chat.onPacket(user, message, false);
+        if (!chat.isPrivateMucChatAccepted()
+                && mucPrivateChatRequestProvider.get(account, user) == null) {
+            mucPrivateChatRequestProvider.add(new MucPrivateChatNotification(account, user), true);
+        }
+        return true;
+    }
+
     // send messages without creating chat and adding to roster
     // used for service auto-generated messages
     public void sendMessageWithoutChat(Jid to, String threadId, AccountJid account, String text) {
@@ -648,18 +739,19 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
                 return;
             }
 
+            MessageItem newMessageItem = chat.createNewMessageItem(body);
+            newMessageItem.setStanzaId(message.getStanzaId());
+            newMessageItem.setSent(true);
+            newMessageItem.setForwarded(true);
             final AbstractChat finalChat = chat;
-            MessageDatabaseManager.getInstance().getRealmUiThread().executeTransaction(new Realm.Transaction() {
+            MessageWriter.getInstance().save(newMessageItem, new MessageWriter.OnCommittedListener() {
                 @Override
-                public void execute(Realm realm) {
-                    MessageItem newMessageItem = finalChat.createNewMessageItem(body);
-                    newMessageItem.setStanzaId(message.getStanzaId());
-                    newMessageItem.setSent(true);
-                    newMessageItem.setForwarded(true);
-                    realm.copyToRealm(newMessageItem);
+                public void onCommitted(boolean success) {
+                    if (success) {
+                        EventBus.getDefault().post(new NewMessageEvent(finalChat.getAccount(), finalChat.getUser()));
+                    }
                 }
             });
-            EventBus.getDefault().post(new NewMessageEvent());
             return;
         }
 
@@ -677,17 +769,9 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
             return;
         }
 
-        boolean processed = false;
-        for (AbstractChat chat : chats.getNested(account.toString()).values()) {
-            if (chat.onPacket(companion, message, true)) {
-                processed = true;
-                break;
-            }
-        }
-        if (getChat(account, companion) != null) {
-            return;
-        }
-        if (processed) {
+        AbstractChat chat = getChat(account, companion);
+        if (chat != null) {
+            chat.onPacket(companion, message, true);
             return;
         }
         final String body = message.getBody();
@@ -717,12 +801,12 @@ public class MessageManager implements OnLoadListener, OnPacketListener, OnDisco
 
     @Override
     public void onAccountRemoved(AccountItem accountItem) {
-        chats.clear(accountItem.getAccount().toString());
+        clearChats(accountItem.getAccount());
     }
 
     @Override
     public void onAccountDisabled(AccountItem accountItem) {
-        chats.clear(accountItem.getAccount().toString());
+        clearChats(accountItem.getAccount());
     }
 
     /**
@@ -0,0 +1,444 @@
+package com.xabber.android.data.message;
+
+import android.support.annotation.NonNull;
+
+import com.xabber.android.data.OnLoadListener;
+import com.xabber.android.data.account.AccountItem;
+import com.xabber.android.data.account.AccountManager;
+import com.xabber.android.data.connection.ConnectionItem;
+import com.xabber.android.data.database.MessageDatabaseManager;
+import com.xabber.android.data.database.MessageWriter;
+import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.database.messagerealm.OutboxItem;
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.UserJid;
+import com.xabber.android.data.log.LogManager;
+
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.realm.Realm;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+/**
+ * Persistent queue of outgoing messages.
+ * <p/>
+ * Unsent messages of the chat are queued as {@link OutboxItem}s when chat
+ * is ready to send them. Messages are sent in order from the single outbox
+ * thread outside of database transactions. Failed messages are retried with
+ * exponential backoff, which is reset on reconnection. When Stream Management
+ * is enabled, sent messages stay in outbox until acknowledgement is received,
+ * and the number of such messages per account is limited. Unacknowledged messages are sent again
+ * if stream was not resumed after reconnection.
+ */
+public class MessageOutbox implements OnLoadListener {
+
+    private static final String LOG_TAG = MessageOutbox.class.getSimpleName();
+
+    /**
+     * Max number of sent but not acknowledged messages per account.
+     */
+    private static final int MAX_IN_FLIGHT = 20;
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static MessageOutbox instance;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Users of the chats ready to send messages by accounts.
+     * Accessed from the outbox thread only.
+     */
+    private final Map<AccountJid, Set<String>> readyChats;
+
+    /**
+     * Ids of not acknowledged messages by accounts.
+     * Accessed from the outbox thread only.
+     */
+    private final Map<AccountJid, Set<String>> inFlight;
+
+    /**
+     * Scheduled sending of the delayed messages by accounts.
+     * Accessed from the outbox thread only.
+     */
+    private final Map<AccountJid, ScheduledFuture<?>> retries;
+
+    public static synchronized MessageOutbox getInstance() {
+        if (instance == null) {
+            instance = new MessageOutbox();
+        }
+
+        return instance;
+    }
+
+    private MessageOutbox() {
+        readyChats = new HashMap<>();
+        inFlight = new HashMap<>();
+        retries = new HashMap<>();
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Message outbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void onLoad() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // there is no connection yet, so nothing can be acknowledged
+                Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+                requeue(realm, realm.where(OutboxItem.class)
+                        .equalTo(OutboxItem.FIELD_STATE, OutboxItem.State.sent.toString())
+                        .findAll());
+                realm.close();
+            }
+        });
+    }
+
+    /**
+     * Queues unsent messages of the chat and starts sending them.
+     */
+    public void send(final AccountJid account, final UserJid user) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                queueUnsentMessages(account, user);
+                getSet(readyChats, account).add(user.toString());
+                sendQueued(account);
+            }
+        });
+    }
+
+    /**
+     * Must be called when connection was authorized.
+     * Messages failed to be sent before are retried without delay.
+     *
+     * @param resumed whether Stream Management session was resumed.
+     */
+    public void onAuthorized(ConnectionItem connection, final boolean resumed) {
+        final AccountJid account = connection.getAccount();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // messages failed while connection was lost can be sent right now
+                ScheduledFuture<?> retry = retries.remove(account);
+                if (retry != null) {
+                    retry.cancel(false);
+                }
+                Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+                resetBackoff(realm, realm.where(OutboxItem.class)
+                        .equalTo(OutboxItem.FIELD_ACCOUNT, account.toString())
+                        .greaterThan(OutboxItem.FIELD_ATTEMPTS, 0)
+                        .findAll());
+
+                if (resumed) {
+                    realm.close();
+                    sendQueued(account);
+                    return;
+                }
+
+                // chats will be ready after roster or room join
+                getSet(readyChats, account).clear();
+                getSet(inFlight, account).clear();
+
+                requeue(realm, realm.where(OutboxItem.class)
+                        .equalTo(OutboxItem.FIELD_ACCOUNT, account.toString())
+                        .equalTo(OutboxItem.FIELD_STATE, OutboxItem.State.sent.toString())
+                        .findAll());
+                realm.close();
+            }
+        });
+    }
+
+    private static void requeue(Realm realm, RealmResults<OutboxItem> outboxItems) {
+        if (outboxItems.isEmpty()) {
+            return;
+        }
+        realm.beginTransaction();
+        for (OutboxItem outboxItem : new ArrayList<>(outboxItems)) {
+            outboxItem.setState(OutboxItem.State.queued);
+        }
+        realm.commitTransaction();
+    }
+
+    private static void resetBackoff(Realm realm, RealmResults<OutboxItem> outboxItems) {
+        if (outboxItems.isEmpty()) {
+            return;
+        }
+        realm.beginTransaction();
+        for (OutboxItem outboxItem : new ArrayList<>(outboxItems)) {
+            outboxItem.setAttempts(0);
+            outboxItem.setNextAttemptTime(0);
+        }
+        realm.commitTransaction();
+    }
+
+    private void queueUnsentMessages(AccountJid account, UserJid user) {
+        try {
+            // sent flags of the messages sent before must be stored
+            MessageWriter.getInstance().flush();
+        } catch (InterruptedException e) {
+            LogManager.exception(LOG_TAG, e);
+        }
+
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        RealmResults<MessageItem> unsentMessages = realm.where(MessageItem.class)
+                .equalTo(MessageItem.Fields.ACCOUNT, account.toString())
+                .equalTo(MessageItem.Fields.USER, user.toString())
+                .equalTo(MessageItem.Fields.SENT, false)
+                .findAllSorted(MessageItem.Fields.TIMESTAMP, Sort.ASCENDING);
+
+        List<OutboxItem> outboxItems = new ArrayList<>();
+        for (MessageItem messageItem : unsentMessages) {
+            if (realm.where(OutboxItem.class)
+                    .equalTo(OutboxItem.FIELD_MESSAGE_ID, messageItem.getUniqueId())
+                    .count() > 0) {
+                continue;
+            }
+
+            OutboxItem outboxItem = new OutboxItem();
+            outboxItem.setMessageId(messageItem.getUniqueId());
+            outboxItem.setAccount(account.toString());
+            outboxItem.setUser(user.toString());
+            outboxItem.setTimestamp(messageItem.getTimestamp() == null
+                    ? System.currentTimeMillis() : messageItem.getTimestamp());
+            outboxItem.setState(OutboxItem.State.queued);
+            outboxItems.add(outboxItem);
+        }
+
+        if (!outboxItems.isEmpty()) {
+            realm.beginTransaction();
+            realm.copyToRealm(outboxItems);
+            realm.commitTransaction();
+        }
+        realm.close();
+    }
+
+    /**
+     * Sends queued messages of the ready chats of the account.
+     * Messages of the chat are sent in order, so the chat is skipped
+     * after its message can not be sent.
+     */
+    private void sendQueued(final AccountJid account) {
+        Set<String> accountInFlight = getSet(inFlight, account);
+        Set<String> accountReadyChats = getSet(readyChats, account);
+        if (accountReadyChats.isEmpty() || accountInFlight.size() >= MAX_IN_FLIGHT) {
+            return;
+        }
+
+        AccountItem accountItem = AccountManager.getInstance().getAccount(account);
+        if (accountItem == null || !accountItem.getConnection().isAuthenticated()) {
+            return;
+        }
+        XMPPTCPConnection connection = accountItem.getConnection();
+
+        List<OutboxItem> outboxItems;
+        Map<String, MessageItem> messageItems = new HashMap<>();
+        {
+            Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+            outboxItems = realm.copyFromRealm(realm.where(OutboxItem.class)
+                    .equalTo(OutboxItem.FIELD_ACCOUNT, account.toString())
+                    .equalTo(OutboxItem.FIELD_STATE, OutboxItem.State.queued.toString())
+                    .findAllSorted(OutboxItem.FIELD_TIMESTAMP, Sort.ASCENDING));
+            for (OutboxItem outboxItem : outboxItems) {
+                if (!accountReadyChats.contains(outboxItem.getUser())) {
+                    continue;
+                }
+                MessageItem messageItem = realm.where(MessageItem.class)
+                        .equalTo(MessageItem.Fields.UNIQUE_ID, outboxItem.getMessageId())
+                        .findFirst();
+                if (messageItem != null) {
+                    messageItems.put(outboxItem.getMessageId(), realm.copyFromRealm(messageItem));
+                }
+            }
+            realm.close();
+        }
+
+        long now = System.currentTimeMillis();
+        long nextAttemptTime = Long.MAX_VALUE;
+        Set<String> skippedChats = new HashSet<>();
+        List<String> removed = new ArrayList<>();
+        List<String> sent = new ArrayList<>();
+        List<OutboxItem> failed = new ArrayList<>();
+
+        for (OutboxItem outboxItem : outboxItems) {
+            if (accountInFlight.size() >= MAX_IN_FLIGHT) {
+                break;
+            }
+            String user = outboxItem.getUser();
+            if (!accountReadyChats.contains(user) || skippedChats.contains(user)) {
+                continue;
+            }
+
+            final String messageId = outboxItem.getMessageId();
+            MessageItem messageItem = messageItems.get(messageId);
+            if (messageItem == null) {
+                // message was removed
+                removed.add(messageId);
+                continue;
+            }
+
+            if (outboxItem.getNextAttemptTime() > now) {
+                skippedChats.add(user);
+                nextAttemptTime = Math.min(nextAttemptTime, outboxItem.getNextAttemptTime());
+                continue;
+            }
+
+            AbstractChat chat;
+            try {
+                chat = MessageManager.getInstance().getChat(account, UserJid.from(user));
+            } catch (UserJid.UserJidCreateException e) {
+                LogManager.exception(LOG_TAG, e);
+                removed.add(messageId);
+                continue;
+            }
+            if (chat == null) {
+                skippedChats.add(user);
+                continue;
+            }
+
+            boolean smEnabled = connection.isSmEnabled();
+            if (!chat.sendMessage(messageItem, new StanzaListener() {
+                @Override
+                public void processStanza(Stanza packet) {
+                    onAcknowledged(account, messageId);
+                }
+            })) {
+                int attempts = outboxItem.getAttempts() + 1;
+                long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+                        INITIAL_RETRY_DELAY_MILLIS << Math.min(attempts - 1, 16));
+                outboxItem.setAttempts(attempts);
+                outboxItem.setNextAttemptTime(now + delay);
+                failed.add(outboxItem);
+                skippedChats.add(user);
+                nextAttemptTime = Math.min(nextAttemptTime, outboxItem.getNextAttemptTime());
+                LogManager.i(LOG_TAG, "Sending attempt " + attempts + " failed, retry in " + delay + " ms");
+                continue;
+            }
+
+            saveSendingState(messageItem);
+            if (smEnabled) {
+                accountInFlight.add(messageId);
+                sent.add(messageId);
+            } else {
+                removed.add(messageId);
+            }
+        }
+
+        updateOutboxItems(removed, sent, failed);
+
+        if (nextAttemptTime != Long.MAX_VALUE) {
+            scheduleRetry(account, Math.max(0, nextAttemptTime - now));
+        }
+    }
+
+    /**
+     * Schedules sending of the delayed messages of the account.
+     * Already scheduled sending is kept unless the new one is earlier.
+     */
+    private void scheduleRetry(final AccountJid account, long delay) {
+        ScheduledFuture<?> retry = retries.get(account);
+        if (retry != null) {
+            if (retry.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                return;
+            }
+            retry.cancel(false);
+        }
+        retries.put(account, executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retries.remove(account);
+                sendQueued(account);
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+    }
+
+    private static void saveSendingState(final MessageItem sentMessage) {
+        MessageWriter.getInstance().update(sentMessage.getUniqueId(), new MessageWriter.MessageUpdate() {
+            @Override
+            public void update(@NonNull MessageItem messageItem) {
+                messageItem.setEncrypted(sentMessage.isEncrypted());
+                messageItem.setStanzaId(sentMessage.getStanzaId());
+                messageItem.setError(sentMessage.isError());
+                messageItem.setErrorDescription(sentMessage.getErrorDescription());
+                messageItem.setDelayTimestamp(sentMessage.getDelayTimestamp());
+                messageItem.setTimestamp(sentMessage.getTimestamp());
+                messageItem.setSent(true);
+            }
+        });
+    }
+
+    private static void updateOutboxItems(List<String> removed, List<String> sent, List<OutboxItem> failed) {
+        if (removed.isEmpty() && sent.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+
+        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
+        realm.beginTransaction();
+        for (String messageId : removed) {
+            OutboxItem outboxItem = realm.where(OutboxItem.class)
+                    .equalTo(OutboxItem.FIELD_MESSAGE_ID, messageId).findFirst();
+            if (outboxItem != null) {
+                outboxItem.deleteFromRealm();
+            }
+        }
+        for (String messageId : sent) {
+            OutboxItem outboxItem = realm.where(OutboxItem.class)
+                    .equalTo(OutboxItem.FIELD_MESSAGE_ID, messageId).findFirst();
+            if (outboxItem != null) {
+                outboxItem.setState(OutboxItem.State.sent);
+            }
+        }
+        realm.copyToRealmOrUpdate(failed);
+        realm.commitTransaction();
+        realm.close();
+    }
+
+    private void onAcknowledged(final AccountJid account, final String messageId) {
+        MessageWriter.getInstance().updateState(messageId, new MessageWriter.MessageState().setAcknowledged());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> removed = new ArrayList<>(1);
+                removed.add(messageId);
+                updateOutboxItems(removed, new ArrayList<String>(), new ArrayList<OutboxItem>());
+
+                if (getSet(inFlight, account).remove(messageId)) {
+                    sendQueued(account);
+                }
+            }
+        });
+    }
+
+    private static Set<String> getSet(Map<AccountJid, Set<String>> map, AccountJid account) {
+        Set<String> set = map.get(account);
+        if (set == null) {
+            set = new HashSet<>();
+            map.put(account, set);
+        }
+        return set;
+    }
+
+}
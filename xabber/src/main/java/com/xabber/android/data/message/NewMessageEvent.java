@@ -1,4 +1,32 @@
 package com.xabber.android.data.message;
 
+import android.support.annotation.Nullable;
+
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.UserJid;
+
 public class NewMessageEvent {
+
+    @Nullable
+    private AccountJid account;
+    @Nullable
+    private UserJid user;
+
+    public NewMessageEvent() {
+    }
+
+    public NewMessageEvent(@Nullable AccountJid account, @Nullable UserJid user) {
+        this.account = account;
+        this.user = user;
+    }
+
+    @Nullable
+    public AccountJid getAccount() {
+        return account;
+    }
+
+    @Nullable
+    public UserJid getUser() {
+        return user;
+    }
 }
@@ -14,19 +14,20 @@
  */
 package com.xabber.android.data.message;
 
-import com.xabber.android.data.Application;
+import android.support.annotation.Nullable;
+
 import com.xabber.android.data.NetworkException;
 import com.xabber.android.data.account.AccountItem;
+import com.xabber.android.data.account.AccountManager;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
-import com.xabber.android.data.database.MessageDatabaseManager;
-import com.xabber.android.data.database.messagerealm.MessageItem;
+import com.xabber.android.data.connection.listeners.PacketInterest;
+import com.xabber.android.data.database.MessageWriter;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.log.LogManager;
 import com.xabber.android.ui.adapter.ChatMessageAdapter;
 
-import org.greenrobot.eventbus.EventBus;
 import org.jivesoftware.smack.ConnectionCreationListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPConnectionRegistry;
@@ -40,8 +41,6 @@ import org.jivesoftware.smackx.receipts.DeliveryReceiptRequest;
 import org.jivesoftware.smackx.receipts.ReceiptReceivedListener;
 import org.jxmpp.jid.Jid;
 
-import io.realm.Realm;
-
 /**
  * Manage message receive receipts as well as error replies.
  *
@@ -76,6 +75,11 @@ public class ReceiptManager implements OnPacketListener, ReceiptReceivedListener
 
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().all(PacketInterest.Kind.message);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza packet) {
         if (!(connection instanceof AccountItem)) {
@@ -91,12 +95,7 @@ public class ReceiptManager implements OnPacketListener, ReceiptReceivedListener
         }
         final Message message = (Message) packet;
         if (message.getType() == Message.Type.error) {
-            Application.getInstance().runInBackgroundUserRequest(new Runnable() {
-                @Override
-                public void run() {
-                    markAsError(account, message);
-                }
-            });
+            markAsError(account, message);
         } else {
             // TODO setDefaultAutoReceiptMode should be used
             for (ExtensionElement packetExtension : message.getExtensions()) {
@@ -119,24 +118,16 @@ public class ReceiptManager implements OnPacketListener, ReceiptReceivedListener
         }
     }
 
-    private void markAsError(final AccountJid account, final Message message) {
-        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-        realm.beginTransaction();
-        MessageItem first = realm.where(MessageItem.class)
-                .equalTo(MessageItem.Fields.ACCOUNT, account.toString())
-                .equalTo(MessageItem.Fields.STANZA_ID, message.getStanzaId()).findFirst();
-        if (first != null) {
-            first.setError(true);
-            XMPPError error = message.getError();
-            if (error != null) {
-                String errorStr = error.toString();
-                String descr = error.getDescriptiveText(null);
-                first.setErrorDescription(errorStr + "\n" + descr);
-            }
+    private void markAsError(AccountJid account, Message message) {
+        String errorDescription = null;
+        XMPPError error = message.getError();
+        if (error != null) {
+            String errorStr = error.toString();
+            String descr = error.getDescriptiveText(null);
+            errorDescription = errorStr + "\n" + descr;
         }
-        realm.commitTransaction();
-        realm.close();
-        EventBus.getDefault().post(new MessageUpdateEvent(account));
+        MessageWriter.getInstance().updateStateByStanzaId(account, message.getStanzaId(),
+                new MessageWriter.MessageState().setError(errorDescription));
     }
 
     @Override
@@ -150,16 +141,24 @@ public class ReceiptManager implements OnPacketListener, ReceiptReceivedListener
         markAsDelivered(toJid, receiptId);
     }
 
-    private void markAsDelivered(final Jid toJid, final String receiptId) {
-        Realm realm = MessageDatabaseManager.getInstance().getNewBackgroundRealm();
-        realm.beginTransaction();
-        MessageItem first = realm.where(MessageItem.class)
-                .equalTo(MessageItem.Fields.STANZA_ID, receiptId).findFirst();
-        if (first != null) {
-            first.setDelivered(true);
+    private void markAsDelivered(Jid toJid, String receiptId) {
+        MessageWriter.getInstance().updateStateByStanzaId(getAccount(toJid), receiptId,
+                new MessageWriter.MessageState().setDelivered());
+    }
+
+    /**
+     * @return account with specified jid or <code>null</code> if there is no such account.
+     */
+    @Nullable
+    private static AccountJid getAccount(@Nullable Jid jid) {
+        if (jid == null) {
+            return null;
+        }
+        for (AccountJid account : AccountManager.getInstance().getAllAccounts()) {
+            if (account.getFullJid().asBareJid().equals(jid.asBareJid())) {
+                return account;
+            }
         }
-        realm.commitTransaction();
-        realm.close();
-        EventBus.getDefault().post(new MessageUpdateEvent());
+        return null;
     }
 }
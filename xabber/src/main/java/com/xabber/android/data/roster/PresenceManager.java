@@ -14,6 +14,7 @@
  */
 package com.xabber.android.data.roster;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.xabber.android.R;
@@ -28,6 +29,7 @@ import com.xabber.android.data.account.listeners.OnAccountDisabledListener;
 import com.xabber.android.data.connection.ConnectionItem;
 import com.xabber.android.data.connection.StanzaSender;
 import com.xabber.android.data.connection.listeners.OnPacketListener;
+import com.xabber.android.data.connection.listeners.PacketInterest;
 import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.avatar.AvatarManager;
@@ -53,17 +55,34 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Process contact's presence information.
+ * <p/>
+ * Presence changes are collected during {@link #PRESENCE_BATCH_DELAY_MILLIS}
+ * and listeners are notified once per batch with the latest presence of each
+ * resource.
  *
  * @author alexander.ivanov
  */
 public class PresenceManager implements OnLoadListener, OnAccountDisabledListener,
         OnPacketListener {
 
+    /**
+     * Time to collect presence changes before notifying listeners.
+     */
+    private static final long PRESENCE_BATCH_DELAY_MILLIS = 250;
+
     private static PresenceManager instance;
 
     private final EntityNotificationProvider<SubscriptionRequest> subscriptionRequestProvider;
@@ -73,6 +92,13 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
      */
     private final HashMap<AccountJid, Set<UserJid>> requestedSubscriptions;
 
+    /**
+     * Latest not dispatched presence changes by account and full jid.
+     */
+    private final Map<String, PresenceChange> pendingPresences;
+
+    private final ScheduledExecutorService presenceDispatcher;
+
     public static PresenceManager getInstance() {
         if (instance == null) {
             instance = new PresenceManager();
@@ -84,6 +110,15 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
     private PresenceManager() {
         subscriptionRequestProvider = new EntityNotificationProvider<>(R.drawable.ic_stat_add_circle);
         requestedSubscriptions = new HashMap<>();
+        pendingPresences = new LinkedHashMap<>();
+        presenceDispatcher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Presence dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
@@ -221,26 +256,89 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
             CapabilitiesManager.getInstance().onPresence(account, presence);
         }
 
-        for (OnStatusChangeListener listener : Application.getInstance().getManagers(OnStatusChangeListener.class)) {
-                listener.onStatusChanged(account, from,
-                        StatusMode.createStatusMode(presence), presence.getStatus());
+        boolean schedule;
+        synchronized (pendingPresences) {
+            schedule = pendingPresences.isEmpty();
+            String key = account + "\n" + from;
+            // keep order of the latest changes
+            pendingPresences.remove(key);
+            pendingPresences.put(key, new PresenceChange(account, from, presence));
+        }
+        if (schedule) {
+            presenceDispatcher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchPresences();
+                }
+            }, PRESENCE_BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notifies listeners about collected presence changes.
+     */
+    @SuppressWarnings("WeakerAccess")
+    void dispatchPresences() {
+        List<PresenceChange> changes;
+        synchronized (pendingPresences) {
+            changes = new ArrayList<>(pendingPresences.values());
+            pendingPresences.clear();
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Collection<OnStatusChangeListener> statusChangeListeners
+                = Application.getInstance().getManagers(OnStatusChangeListener.class);
+        Set<RosterContact> rosterContacts = new LinkedHashSet<>();
+        boolean otherUsersChanged = false;
+        for (PresenceChange change : changes) {
+            try {
+                for (OnStatusChangeListener listener : statusChangeListeners) {
+                    listener.onStatusChanged(change.account, change.user,
+                            StatusMode.createStatusMode(change.presence), change.presence.getStatus());
+                }
+            } catch (Exception e) {
+                LogManager.exception(this, e);
+            }
+
+            RosterContact rosterContact = RosterManager.getInstance()
+                    .getRosterContact(change.account, change.user.getBareJid());
+            if (rosterContact != null) {
+                rosterContacts.add(rosterContact);
+            } else {
+                otherUsersChanged = true;
+            }
         }
 
-        RosterContact rosterContact = RosterManager.getInstance().getRosterContact(account, from.getBareJid());
-        if (rosterContact != null) {
-            ArrayList<RosterContact> rosterContacts = new ArrayList<>();
-            rosterContacts.add(rosterContact);
+        ArrayList<RosterContact> changedContacts = new ArrayList<>(rosterContacts);
+        if (!changedContacts.isEmpty()) {
             for (OnRosterChangedListener listener
                     : Application.getInstance().getManagers(OnRosterChangedListener.class)) {
-                listener.onPresenceChanged(rosterContacts);
+                listener.onPresenceChanged(changedContacts);
             }
         }
-        RosterManager.onContactChanged(account, from);
+        if (!changedContacts.isEmpty()) {
+            RosterManager.onContactsChanged(changedContacts);
+        }
+        if (otherUsersChanged) {
+            // users not in roster, e.g. rooms and their occupants
+            RosterManager.onContactsChanged(new ArrayList<RosterContact>());
+        }
     }
 
     @Override
     public void onAccountDisabled(AccountItem accountItem) {
         requestedSubscriptions.remove(accountItem.getAccount());
+        String prefix = accountItem.getAccount() + "\n";
+        synchronized (pendingPresences) {
+            Iterator<String> keys = pendingPresences.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(prefix)) {
+                    keys.remove();
+                }
+            }
+        }
     }
 
     /**
@@ -268,6 +366,11 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
         StanzaSender.sendStanza(account, presence);
     }
 
+    @Override
+    public PacketInterest getPacketInterest() {
+        return new PacketInterest().all(PacketInterest.Kind.presence);
+    }
+
     @Override
     public void onStanza(ConnectionItem connection, Stanza stanza) {
         if (!(connection instanceof AccountItem)) {
@@ -279,8 +382,11 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
         }
 
         Presence presence = (Presence) stanza;
+        if (presence.getType() != Presence.Type.subscribe) {
+            return;
+        }
 
-        UserJid from;
+        final UserJid from;
         try {
             from = UserJid.from(stanza.getFrom());
         } catch (UserJid.UserJidCreateException e) {
@@ -288,65 +394,71 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
             return;
         }
 
-        if (presence.getType() == Presence.Type.subscribe) {
-            AccountJid account = connection.getAccount();
-
-            // check spam-filter settings
+        final AccountJid account = connection.getAccount();
+        Application.getInstance().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                onSubscribe(account, from);
+            }
+        });
+    }
 
-            // reject all subscribe-requests
-            if (SettingsManager.spamFilterMode() == SettingsManager.SpamFilterMode.noAuth) {
-                // send a warning message to sender
-                MessageManager.getInstance().sendMessageWithoutChat(from.getJid(),
-                        StringUtils.randomString(12), account,
-                        Application.getInstance().getResources().getString(R.string.spam_filter_ban_subscription));
-                // and discard subscription
-                try {
-                    discardSubscription(account, UserJid.from(from.toString()));
-                } catch (NetworkException | UserJid.UserJidCreateException e) {
-                    e.printStackTrace();
-                }
+    private void onSubscribe(AccountJid account, UserJid from) {
+        // check spam-filter settings
 
-                return;
+        // reject all subscribe-requests
+        if (SettingsManager.spamFilterMode() == SettingsManager.SpamFilterMode.noAuth) {
+            // send a warning message to sender
+            MessageManager.getInstance().sendMessageWithoutChat(from.getJid(),
+                    StringUtils.randomString(12), account,
+                    Application.getInstance().getResources().getString(R.string.spam_filter_ban_subscription));
+            // and discard subscription
+            try {
+                discardSubscription(account, UserJid.from(from.toString()));
+            } catch (NetworkException | UserJid.UserJidCreateException e) {
+                e.printStackTrace();
             }
 
-            // require captcha for subscription
-            if (SettingsManager.spamFilterMode() == SettingsManager.SpamFilterMode.authCaptcha) {
+            return;
+        }
 
-                Captcha captcha = CaptchaManager.getInstance().getCaptcha(account, from);
+        // require captcha for subscription
+        if (SettingsManager.spamFilterMode() == SettingsManager.SpamFilterMode.authCaptcha) {
 
-                // if captcha for this user already exist, check expires time and discard if need
-                if (captcha != null) {
+            Captcha captcha = CaptchaManager.getInstance().getCaptcha(account, from);
 
-                    if (captcha.getExpiresDate() < System.currentTimeMillis()) {
-                        // discard subscription
-                        try {
-                            discardSubscription(account, UserJid.from(from.toString()));
-                        } catch (NetworkException | UserJid.UserJidCreateException e) {
-                            e.printStackTrace();
-                        }
-                        return;
-                    }
+            // if captcha for this user already exist, check expires time and discard if need
+            if (captcha != null) {
 
-                    // skip subscription, waiting for captcha in messageManager
+                if (captcha.getExpiresDate() < System.currentTimeMillis()) {
+                    // discard subscription
+                    try {
+                        discardSubscription(account, UserJid.from(from.toString()));
+                    } catch (NetworkException | UserJid.UserJidCreateException e) {
+                        e.printStackTrace();
+                    }
                     return;
+                }
 
-                } else {
-                    // generate captcha
-                    String captchaQuestion = CaptchaManager.getInstance().generateAndSaveCaptcha(account, from);
+                // skip subscription, waiting for captcha in messageManager
+                return;
 
-                    // send captcha message to sender
-                    MessageManager.getInstance().sendMessageWithoutChat(from.getJid(),
-                            StringUtils.randomString(12), account,
-                            Application.getInstance().getResources().getString(R.string.spam_filter_limit_subscription) + " " + captchaQuestion);
+            } else {
+                // generate captcha
+                String captchaQuestion = CaptchaManager.getInstance().generateAndSaveCaptcha(account, from);
 
-                    // and skip subscription, waiting for captcha in messageManager
-                    return;
-                }
-            }
+                // send captcha message to sender
+                MessageManager.getInstance().sendMessageWithoutChat(from.getJid(),
+                        StringUtils.randomString(12), account,
+                        Application.getInstance().getResources().getString(R.string.spam_filter_limit_subscription) + " " + captchaQuestion);
 
-            // subscription request
-            handleSubscriptionRequest(account, from);
+                // and skip subscription, waiting for captcha in messageManager
+                return;
+            }
         }
+
+        // subscription request
+        handleSubscriptionRequest(account, from);
     }
 
     public void handleSubscriptionRequest(AccountJid account, UserJid from) {
@@ -374,4 +486,19 @@ public class PresenceManager implements OnLoadListener, OnAccountDisabledListene
     public static void sortPresencesByPriority(List<Presence> allPresences) {
         Collections.sort(allPresences, PresenceComparatorByPriority.INSTANCE);
     }
-}
\ No newline at end of file
+    private static class PresenceChange {
+
+        final AccountJid account;
+
+        final UserJid user;
+
+        final Presence presence;
+
+        PresenceChange(AccountJid account, UserJid user, Presence presence) {
+            this.account = account;
+            this.user = user;
+            this.presence = presence;
+        }
+    }
+
+}
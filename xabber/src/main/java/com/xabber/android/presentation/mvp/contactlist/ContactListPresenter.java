@@ -14,7 +14,9 @@ import com.xabber.android.data.account.CommonState;
 import com.xabber.android.data.account.listeners.OnAccountChangedListener;
 import com.xabber.android.data.database.messagerealm.MessageItem;
 import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.NestedMap;
 import com.xabber.android.data.entity.UserJid;
+import com.xabber.android.data.extension.avatar.AvatarChangedEvent;
 import com.xabber.android.data.extension.blocking.BlockingManager;
 import com.xabber.android.data.extension.muc.MUCManager;
 import com.xabber.android.data.extension.muc.RoomChat;
@@ -50,12 +52,16 @@ import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import eu.davidea.flexibleadapter.items.IFlexible;
@@ -70,6 +76,11 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
 
     private static final int MAX_RECENT_ITEMS = 12;
 
+    /**
+     * Key of the converted rows shown in search results.
+     */
+    private static final String SEARCH_RESULTS_GROUP = "";
+
     private static ContactListPresenter instance;
     private ContactListView view;
     private Context context;
@@ -79,6 +90,71 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
     protected Locale locale = Locale.getDefault();
     private ChatListState currentChatsState = ChatListState.recent;
 
+    /**
+     * Converted contact rows by group names, reused until contact, its chat or account is changed.
+     */
+    private final NestedMap<Map<String, ContactVO>> contactItems = new NestedMap<>();
+
+    /**
+     * Whether roster must be grouped and sorted again on the next build.
+     */
+    private boolean rosterChanged = true;
+
+    /**
+     * Settings used by the last build. Any change causes full rebuild.
+     */
+    private List<Object> buildSettings;
+
+    /**
+     * Rooms and active chats grouped by the last build.
+     */
+    private Set<AbstractChat> groupedChats = Collections.emptySet();
+
+    /**
+     * Roster grouped by the last build.
+     */
+    private Map<AccountJid, AccountConfiguration> accountConfigurations;
+    private Map<String, GroupConfiguration> groupConfigurations;
+    private List<AbstractContact> contactConfigurations;
+    private boolean hasContacts;
+    private boolean hasVisibleContacts;
+
+    /**
+     * Places of roster contacts in the grouped roster by account and user.
+     */
+    private final NestedMap<Placement> placements = new NestedMap<>();
+
+    /**
+     * Roster contacts changed since the last build, re-placed without full regroup.
+     */
+    private final Set<RosterContact> changedContacts = new HashSet<>();
+
+    private int contactsCount;
+    private int visibleContactsCount;
+    private boolean hasVisibleChats;
+
+    /**
+     * Place of roster contact in the grouped roster.
+     */
+    private static class Placement {
+        private final RosterContact contact;
+        private final boolean online;
+        private final boolean visible;
+        /**
+         * Groups contact was added to or <code>null</code> if it was filtered by selected account.
+         */
+        private final Collection<String> groups;
+
+        Placement(RosterContact contact, boolean online, boolean visible, Collection<String> groups) {
+            this.contact = contact;
+            this.online = online;
+            this.visible = visible;
+            this.groups = groups;
+        }
+    }
+
+    private final ContactSearchIndex searchIndex = new ContactSearchIndex(locale);
+
     public static ContactListPresenter getInstance(Context context) {
         if (instance == null) instance = new ContactListPresenter(context);
         return instance;
@@ -94,6 +170,7 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
         Application.getInstance().addUIListener(OnAccountChangedListener.class, this);
         Application.getInstance().addUIListener(OnContactChangedListener.class, this);
         EventBus.getDefault().register(this);
+        invalidate();
         structureBuilder.build();
     }
 
@@ -109,9 +186,19 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
     }
 
     public void updateContactList() {
+        invalidate();
         structureBuilder.refreshRequest();
     }
 
+    /**
+     * Forgets converted rows and grouped roster, so the next build is the full one.
+     */
+    private void invalidate() {
+        contactItems.clear();
+        rosterChanged = true;
+        searchIndex.invalidate();
+    }
+
     public void onItemClick(IFlexible item) {
         if (item instanceof ContactVO) {
             AccountJid accountJid = ((ContactVO) item).getAccountJid();
@@ -171,16 +258,55 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
 
     @Override
     public void onAccountsChanged(Collection<AccountJid> accounts) {
+        for (AccountJid account : accounts) {
+            contactItems.clear(account.toString());
+            searchIndex.invalidate(account);
+        }
+        rosterChanged = true;
         structureBuilder.refreshRequest();
     }
 
     @Override
     public void onContactsChanged(Collection<RosterContact> entities) {
+        for (RosterContact contact : entities) {
+            contactItems.remove(contact.getAccount().toString(), contact.getUser().toString());
+            if (!contact.isEnabled() || contact != RosterManager.getInstance()
+                    .getRosterContact(contact.getAccount(), contact.getUser())
+                    || !searchIndex.update(contact, SettingsManager.contactsOrder())) {
+                searchIndex.invalidate();
+            }
+        }
+        if (entities.isEmpty()) {
+            searchIndex.invalidate();
+            rosterChanged = true;
+        } else {
+            changedContacts.addAll(entities);
+        }
         structureBuilder.refreshRequest();
     }
 
+    /**
+     * New message changes only the row of its chat and recent chats,
+     * roster is not grouped again.
+     */
     @Subscribe(threadMode = ThreadMode.MAIN)
     public void onNewMessageEvent(NewMessageEvent event) {
+        if (event.getAccount() != null && event.getUser() != null) {
+            contactItems.remove(event.getAccount().toString(), event.getUser().toString());
+        } else {
+            contactItems.clear();
+        }
+        structureBuilder.refreshRequest();
+    }
+
+    /**
+     * Avatar of the user without roster item changes only rows of the user.
+     */
+    @Subscribe(threadMode = ThreadMode.MAIN)
+    public void onAvatarChangedEvent(AvatarChangedEvent event) {
+        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
+            contactItems.remove(account.toString(), event.getUser().toString());
+        }
         structureBuilder.refreshRequest();
     }
 
@@ -190,163 +316,50 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
 
         List<IFlexible> items = new ArrayList<>();
 
-        final Collection<RosterContact> allRosterContacts = RosterManager.getInstance().getAllContacts();
-
-        Map<AccountJid, Collection<UserJid>> blockedContacts = new TreeMap<>();
-        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
-            blockedContacts.put(account, BlockingManager.getInstance().getCachedBlockedContacts(account));
-        }
-
-        final Collection<RosterContact> rosterContacts = new ArrayList<>();
-        for (RosterContact contact : allRosterContacts) {
-            if (blockedContacts.containsKey(contact.getAccount())) {
-                if (!blockedContacts.get(contact.getAccount()).contains(contact.getUser())) {
-                    rosterContacts.add(contact);
-                }
-            }
-        }
-
         final boolean showOffline = SettingsManager.contactsShowOffline();
         final boolean showGroups = SettingsManager.contactsShowGroups();
         final boolean showEmptyGroups = SettingsManager.contactsShowEmptyGroups();
-        final boolean showActiveChats = false;
-        final boolean stayActiveChats = true;
         final boolean showAccounts = SettingsManager.contactsShowAccounts();
         final Comparator<AbstractContact> comparator = SettingsManager.contactsOrder();
         final CommonState commonState = AccountManager.getInstance().getCommonState();
         final AccountJid selectedAccount = AccountManager.getInstance().getSelectedAccount();
 
-
-        /**
-         * Groups.
-         */
-        final Map<String, GroupConfiguration> groups;
-
-        /**
-         * Contacts.
-         */
-        final List<AbstractContact> contacts;
-
-        /**
-         * Chat list on top of contact list.
-         */
-        final GroupConfiguration chatsGroup;
-
-        /**
-         * Whether there is at least one contact.
-         */
-        boolean hasContacts = false;
-
-        /**
-         * Whether there is at least one visible contact.
-         */
-        boolean hasVisibleContacts = false;
-
-        final Map<AccountJid, AccountConfiguration> accounts = new TreeMap<>();
-
-        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
-            accounts.put(account, null);
+        List<Object> settings = Arrays.<Object>asList(showOffline, showGroups, showEmptyGroups,
+                showAccounts, comparator, selectedAccount, SettingsManager.contactsShowMessages(),
+                AccountManager.getInstance().getEnabledAccounts());
+        if (!settings.equals(buildSettings)) {
+            buildSettings = settings;
+            invalidate();
         }
 
-        /**
-         * List of rooms and active chats grouped by users inside accounts.
-         */
-        final Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats = new TreeMap<>();
-
-        for (AbstractChat abstractChat : MessageManager.getInstance().getChats()) {
-            if ((abstractChat instanceof RoomChat || abstractChat.isActive())
-                    && accounts.containsKey(abstractChat.getAccount())) {
-                final AccountJid account = abstractChat.getAccount();
-                Map<UserJid, AbstractChat> users = abstractChats.get(account);
-                if (users == null) {
-                    users = new TreeMap<>();
-                    abstractChats.put(account, users);
-                }
-                users.put(abstractChat.getUser(), abstractChat);
-            }
+        final Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats = getGroupedChats();
+        Set<AbstractChat> chats = new HashSet<>();
+        for (Map<UserJid, AbstractChat> users : abstractChats.values()) {
+            chats.addAll(users.values());
+        }
+        if (!chats.equals(groupedChats)) {
+            groupedChats = chats;
+            rosterChanged = true;
+            searchIndex.invalidate();
         }
 
         if (filterString == null || filterString.isEmpty()) {
 
-            // BUILD STRUCTURE //
-
-            // Create arrays.
-            if (showAccounts) {
-                groups = null;
-                contacts = null;
-                for (Map.Entry<AccountJid, AccountConfiguration> entry : accounts.entrySet()) {
-                    entry.setValue(new AccountConfiguration(entry.getKey(),
-                            GroupManager.IS_ACCOUNT, GroupManager.getInstance()));
-                }
-            } else {
-                if (showGroups) {
-                    groups = new TreeMap<>();
-                    contacts = null;
-                } else {
-                    groups = null;
-                    contacts = new ArrayList<>();
-                }
+            if (!rosterChanged && !changedContacts.isEmpty()) {
+                rosterChanged = !regroupContacts(showOffline, showGroups, showAccounts,
+                        comparator, selectedAccount);
             }
-
-            // chats on top
-            Collection<AbstractChat> chats = MessageManager.getInstance().getChatsOfEnabledAccount();
-            chatsGroup = getChatsGroup(chats, currentChatsState);
-
-            // Build structure.
-            for (RosterContact rosterContact : rosterContacts) {
-                if (!rosterContact.isEnabled()) {
-                    continue;
-                }
-                hasContacts = true;
-                final boolean online = rosterContact.getStatusMode().isOnline();
-                final AccountJid account = rosterContact.getAccount();
-                final Map<UserJid, AbstractChat> users = abstractChats.get(account);
-                final AbstractChat abstractChat;
-                if (users == null) {
-                    abstractChat = null;
-                } else {
-                    abstractChat = users.remove(rosterContact.getUser());
-                }
-
-                if (selectedAccount != null && !selectedAccount.equals(account)) {
-                    continue;
-                }
-                if (ContactListGroupUtils.addContact(rosterContact, online, accounts, groups,
-                        contacts, showAccounts, showGroups, showOffline)) {
-                    hasVisibleContacts = true;
-                }
+            if (rosterChanged) {
+                groupRoster(abstractChats, showOffline, showGroups, showAccounts, comparator, selectedAccount);
+                rosterChanged = false;
             }
-            for (Map<UserJid, AbstractChat> users : abstractChats.values())
-                for (AbstractChat abstractChat : users.values()) {
-                    final AbstractContact abstractContact;
-                    if (abstractChat instanceof RoomChat) {
-                        abstractContact = new RoomContact((RoomChat) abstractChat);
-                    } else {
-                        abstractContact = new ChatContact(abstractChat);
-                    }
-                    if (selectedAccount != null && !selectedAccount.equals(abstractChat.getAccount())) {
-                        continue;
-                    }
-                    final String group;
-                    final boolean online;
-                    if (abstractChat instanceof RoomChat) {
-                        group = GroupManager.IS_ROOM;
-                        online = abstractContact.getStatusMode().isOnline();
-                    } else if (MUCManager.getInstance().isMucPrivateChat(abstractChat.getAccount(), abstractChat.getUser())) {
-                        group = GroupManager.IS_ROOM;
-                        online = abstractContact.getStatusMode().isOnline();
-                    } else {
-                        group = GroupManager.NO_GROUP;
-                        online = false;
-                    }
-                    hasVisibleContacts = true;
-                    ContactListGroupUtils.addContact(abstractContact, group, online, accounts, groups, contacts,
-                            showAccounts, showGroups);
-                }
+            changedContacts.clear();
 
-            // BUILD STRUCTURE //
+            // chats on top
+            final GroupConfiguration chatsGroup = getChatsGroup(
+                    MessageManager.getInstance().getChatsOfEnabledAccount(), currentChatsState);
 
-            // Remove empty groups, sort and apply structure.
+            // Remove empty groups and apply structure.
             items.clear();
             items.add(new ToolbarVO(context, this));
             if (hasVisibleContacts) {
@@ -366,7 +379,7 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
 
                     if (showAccounts) {
                         //boolean isFirst = items.isEmpty();
-                        for (AccountConfiguration rosterAccount : accounts.values()) {
+                        for (AccountConfiguration rosterAccount : accountConfigurations.values()) {
 //                            if (isFirst) {
 //                                isFirst = false;
 //                            } else {
@@ -375,9 +388,9 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
 
                             if (rosterAccount.getTotal() != 0) {
                                 if (showGroups) {
-                                    createContactListWithAccountsAndGroups(items, rosterAccount, showEmptyGroups, comparator);
+                                    createContactListWithAccountsAndGroups(items, rosterAccount, showEmptyGroups);
                                 } else {
-                                    createContactListWithAccounts(items, rosterAccount, comparator);
+                                    createContactListWithAccounts(items, rosterAccount);
                                 }
                             } else {
                                 AccountWithButtonsVO account = AccountWithButtonsVO.convert(rosterAccount, this);
@@ -389,27 +402,32 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
                         }
                     } else {
                         if (showGroups) {
-                            createContactListWithGroups(items, showEmptyGroups, groups, comparator);
+                            createContactListWithGroups(items, showEmptyGroups, groupConfigurations);
                         } else {
-                            createContactList(items, contacts, comparator);
+                            createContactList(items, contactConfigurations);
                         }
                     }
                 } else
                     items.addAll(ChatVO.convert(chatsGroup.getAbstractContacts(), this, null));
             }
+
+            if (view != null) view.onContactListChanged(commonState, hasContacts, hasVisibleContacts,
+                    filterString != null);
         } else { // Search
-            final ArrayList<AbstractContact> baseEntities = getSearchResults(rosterContacts, comparator, abstractChats);
+            if (!searchIndex.hasContacts()) {
+                searchIndex.setContacts(getSearchContacts(comparator, abstractChats));
+            }
+            final List<AbstractContact> baseEntities = searchIndex.search(filterString.toLowerCase(locale));
             items.clear();
 
             items.add(new CategoryVO(context.getString(R.string.category_title_contacts)));
-            items.addAll(SettingsManager.contactsShowMessages()
-                    ? ExtContactVO.convert(baseEntities, this)
-                    : ContactVO.convert(baseEntities, this));
-            hasVisibleContacts = baseEntities.size() > 0;
-        }
+            for (AbstractContact contact : baseEntities) {
+                items.add(getContactItem(contact, SEARCH_RESULTS_GROUP));
+            }
 
-        if (view != null) view.onContactListChanged(commonState, hasContacts, hasVisibleContacts,
-                    filterString != null);
+            if (view != null) view.onContactListChanged(commonState, hasContacts,
+                    !baseEntities.isEmpty(), true);
+        }
 
         if (view != null) {
             if (items.size() == 1 && (filterString == null || filterString.isEmpty())) {
@@ -422,6 +440,266 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
         }
     }
 
+    /**
+     * @return enabled and not blocked roster contacts.
+     */
+    private Collection<RosterContact> getRosterContacts() {
+        final Collection<RosterContact> allRosterContacts = RosterManager.getInstance().getAllContacts();
+
+        Map<AccountJid, Set<UserJid>> blockedContacts = new HashMap<>();
+        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
+            blockedContacts.put(account,
+                    new HashSet<>(BlockingManager.getInstance().getCachedBlockedContacts(account)));
+        }
+
+        final Collection<RosterContact> rosterContacts = new ArrayList<>();
+        for (RosterContact contact : allRosterContacts) {
+            if (blockedContacts.containsKey(contact.getAccount())) {
+                if (!blockedContacts.get(contact.getAccount()).contains(contact.getUser())) {
+                    rosterContacts.add(contact);
+                }
+            }
+        }
+        return rosterContacts;
+    }
+
+    /**
+     * @return rooms and active chats of enabled accounts grouped by users inside accounts.
+     */
+    private Map<AccountJid, Map<UserJid, AbstractChat>> getGroupedChats() {
+        final Collection<AccountJid> enabledAccounts = AccountManager.getInstance().getEnabledAccounts();
+        final Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats = new TreeMap<>();
+
+        for (AbstractChat abstractChat : MessageManager.getInstance().getChats()) {
+            if ((abstractChat instanceof RoomChat || abstractChat.isActive())
+                    && enabledAccounts.contains(abstractChat.getAccount())) {
+                final AccountJid account = abstractChat.getAccount();
+                Map<UserJid, AbstractChat> users = abstractChats.get(account);
+                if (users == null) {
+                    users = new TreeMap<>();
+                    abstractChats.put(account, users);
+                }
+                users.put(abstractChat.getUser(), abstractChat);
+            }
+        }
+        return abstractChats;
+    }
+
+    /**
+     * Puts roster contacts, rooms and active chats into accounts and groups and sorts them.
+     * Rows are not converted here, so regrouping doesn't depend on row rendering cost.
+     */
+    private void groupRoster(Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats,
+                             boolean showOffline, boolean showGroups, boolean showAccounts,
+                             Comparator<AbstractContact> comparator, AccountJid selectedAccount) {
+        final Map<AccountJid, AccountConfiguration> accounts = new TreeMap<>();
+        final Map<String, GroupConfiguration> groups;
+        final List<AbstractContact> contacts;
+        placements.clear();
+        contactsCount = 0;
+        visibleContactsCount = 0;
+        hasVisibleChats = false;
+
+        for (AccountJid account : AccountManager.getInstance().getEnabledAccounts()) {
+            accounts.put(account, null);
+        }
+
+        // Create arrays.
+        if (showAccounts) {
+            groups = null;
+            contacts = null;
+            for (Map.Entry<AccountJid, AccountConfiguration> entry : accounts.entrySet()) {
+                entry.setValue(new AccountConfiguration(entry.getKey(),
+                        GroupManager.IS_ACCOUNT, GroupManager.getInstance()));
+            }
+        } else {
+            if (showGroups) {
+                groups = new TreeMap<>();
+                contacts = null;
+            } else {
+                groups = null;
+                contacts = new ArrayList<>();
+            }
+        }
+
+        Map<AccountJid, Map<UserJid, AbstractChat>> restChats = new TreeMap<>();
+        for (Map.Entry<AccountJid, Map<UserJid, AbstractChat>> entry : abstractChats.entrySet()) {
+            restChats.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+        }
+
+        // Build structure.
+        for (RosterContact rosterContact : getRosterContacts()) {
+            if (!rosterContact.isEnabled()) {
+                continue;
+            }
+            final AccountJid account = rosterContact.getAccount();
+            final Map<UserJid, AbstractChat> users = restChats.get(account);
+            if (users != null) {
+                users.remove(rosterContact.getUser());
+            }
+            placeContact(rosterContact, accounts, groups, contacts, showOffline, showGroups, showAccounts,
+                    selectedAccount);
+        }
+        for (Map<UserJid, AbstractChat> users : restChats.values())
+            for (AbstractChat abstractChat : users.values()) {
+                final AbstractContact abstractContact;
+                if (abstractChat instanceof RoomChat) {
+                    abstractContact = new RoomContact((RoomChat) abstractChat);
+                } else {
+                    abstractContact = new ChatContact(abstractChat);
+                }
+                if (selectedAccount != null && !selectedAccount.equals(abstractChat.getAccount())) {
+                    continue;
+                }
+                final String group;
+                final boolean online;
+                if (abstractChat instanceof RoomChat) {
+                    group = GroupManager.IS_ROOM;
+                    online = abstractContact.getStatusMode().isOnline();
+                } else if (MUCManager.getInstance().isMucPrivateChat(abstractChat.getAccount(), abstractChat.getUser())) {
+                    group = GroupManager.IS_ROOM;
+                    online = abstractContact.getStatusMode().isOnline();
+                } else {
+                    group = GroupManager.NO_GROUP;
+                    online = false;
+                }
+                hasVisibleChats = true;
+                ContactListGroupUtils.addContact(abstractContact, group, online, accounts, groups, contacts,
+                        showAccounts, showGroups);
+            }
+
+        // Sort.
+        if (showAccounts) {
+            for (AccountConfiguration rosterAccount : accounts.values()) {
+                rosterAccount.sortAbstractContacts(comparator);
+                for (GroupConfiguration rosterConfiguration : rosterAccount.getSortedGroupConfigurations()) {
+                    rosterConfiguration.sortAbstractContacts(comparator);
+                }
+            }
+        } else if (showGroups) {
+            for (GroupConfiguration rosterConfiguration : groups.values()) {
+                rosterConfiguration.sortAbstractContacts(comparator);
+            }
+        } else {
+            Collections.sort(contacts, comparator);
+        }
+
+        accountConfigurations = accounts;
+        groupConfigurations = groups;
+        contactConfigurations = contacts;
+        updateHasContacts();
+    }
+
+    /**
+     * Adds enabled roster contact to the grouped roster and remembers its place.
+     */
+    private void placeContact(RosterContact rosterContact, Map<AccountJid, AccountConfiguration> accounts,
+                              Map<String, GroupConfiguration> groups, List<AbstractContact> contacts,
+                              boolean showOffline, boolean showGroups, boolean showAccounts,
+                              AccountJid selectedAccount) {
+        final boolean online = rosterContact.getStatusMode().isOnline();
+        final boolean visible;
+        final Collection<String> groupNames;
+        if (selectedAccount != null && !selectedAccount.equals(rosterContact.getAccount())) {
+            visible = false;
+            groupNames = null;
+        } else {
+            visible = ContactListGroupUtils.addContact(rosterContact, online, accounts, groups,
+                    contacts, showAccounts, showGroups, showOffline);
+            groupNames = ContactListGroupUtils.getGroupNames(rosterContact);
+        }
+        placements.put(rosterContact.getAccount().toString(), rosterContact.getUser().toString(),
+                new Placement(rosterContact, online, visible, groupNames));
+        contactsCount++;
+        if (visible) {
+            visibleContactsCount++;
+        }
+    }
+
+    /**
+     * Removes roster contact from the place it was added to.
+     */
+    private void unplaceContact(Placement placement, boolean showGroups, boolean showAccounts) {
+        final RosterContact rosterContact = placement.contact;
+        placements.remove(rosterContact.getAccount().toString(), rosterContact.getUser().toString());
+        if (placement.groups != null) {
+            ContactListGroupUtils.removeContact(rosterContact, placement.groups, placement.online,
+                    accountConfigurations, groupConfigurations, contactConfigurations, showAccounts, showGroups);
+        }
+        contactsCount--;
+        if (placement.visible) {
+            visibleContactsCount--;
+        }
+    }
+
+    /**
+     * Re-places only changed roster contacts in the grouped roster.
+     *
+     * @return <code>false</code> if roster must be grouped again.
+     */
+    private boolean regroupContacts(boolean showOffline, boolean showGroups, boolean showAccounts,
+                                    Comparator<AbstractContact> comparator, AccountJid selectedAccount) {
+        final List<Placement> changed = new ArrayList<>(changedContacts.size());
+        for (RosterContact contact : changedContacts) {
+            final Placement placement = placements.get(contact.getAccount().toString(),
+                    contact.getUser().toString());
+            if (placement == null || placement.contact != RosterManager.getInstance()
+                    .getRosterContact(contact.getAccount(), contact.getUser())) {
+                return false;
+            }
+            changed.add(placement);
+        }
+
+        for (Placement placement : changed) {
+            unplaceContact(placement, showGroups, showAccounts);
+        }
+        for (Placement placement : changed) {
+            final RosterContact rosterContact = placement.contact;
+            if (!rosterContact.isEnabled() || BlockingManager.getInstance()
+                    .getCachedBlockedContacts(rosterContact.getAccount()).contains(rosterContact.getUser())) {
+                continue;
+            }
+            placeContact(rosterContact, accountConfigurations, groupConfigurations, contactConfigurations,
+                    showOffline, showGroups, showAccounts, selectedAccount);
+            final Placement added = placements.get(rosterContact.getAccount().toString(),
+                    rosterContact.getUser().toString());
+            if (added.groups != null) {
+                ContactListGroupUtils.sortContact(rosterContact, added.groups, accountConfigurations,
+                        groupConfigurations, contactConfigurations, showAccounts, showGroups, comparator);
+            }
+        }
+        updateHasContacts();
+        return true;
+    }
+
+    private void updateHasContacts() {
+        hasContacts = contactsCount > 0;
+        hasVisibleContacts = visibleContactsCount > 0 || hasVisibleChats;
+    }
+
+    /**
+     * @param group name of the group or account the row is shown in,
+     *              contact in several groups needs separate rows.
+     * @return row for the contact, converted only if contact was changed since the last build.
+     */
+    private ContactVO getContactItem(AbstractContact contact, String group) {
+        String account = contact.getAccount().toString();
+        String user = contact.getUser().toString();
+        Map<String, ContactVO> items = contactItems.get(account, user);
+        if (items == null) {
+            items = new HashMap<>();
+            contactItems.put(account, user, items);
+        }
+        ContactVO item = items.get(group);
+        if (item == null) {
+            item = SettingsManager.contactsShowMessages()
+                    ? ExtContactVO.convert(contact, this)
+                    : ContactVO.convert(contact, this);
+            items.put(group, item);
+        }
+        return item;
+    }
+
     /**
      * @param chats which must be filtered
      * @param state for which you want to filter
@@ -478,7 +756,7 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
     }
 
     private void createContactListWithAccountsAndGroups(List<IFlexible> items, AccountConfiguration rosterAccount,
-                                                        boolean showEmptyGroups, Comparator<AbstractContact> comparator) {
+                                                        boolean showEmptyGroups) {
         AccountWithGroupsVO account = AccountWithGroupsVO.convert(rosterAccount, this);
         boolean firstGroupInAccount = true;
         for (GroupConfiguration rosterConfiguration : rosterAccount
@@ -486,12 +764,9 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
             if (showEmptyGroups || !rosterConfiguration.isEmpty()) {
                 GroupVO group = GroupVO.convert(rosterConfiguration, firstGroupInAccount, this);
                 firstGroupInAccount = false;
-                rosterConfiguration.sortAbstractContacts(comparator);
 
                 for (AbstractContact contact : rosterConfiguration.getAbstractContacts()) {
-                    group.addSubItem(SettingsManager.contactsShowMessages()
-                            ? ExtContactVO.convert(contact, this)
-                            : ContactVO.convert(contact, this));
+                    group.addSubItem(getContactItem(contact, rosterConfiguration.getGroup()));
                 }
                 account.addSubItem(group);
             }
@@ -499,63 +774,55 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
         items.add(account);
     }
 
-    private void createContactListWithAccounts(List<IFlexible> items, AccountConfiguration rosterAccount,
-                                               Comparator<AbstractContact> comparator) {
+    private void createContactListWithAccounts(List<IFlexible> items, AccountConfiguration rosterAccount) {
         AccountWithContactsVO account = AccountWithContactsVO.convert(rosterAccount, this);
-        rosterAccount.sortAbstractContacts(comparator);
 
         for (AbstractContact contact : rosterAccount.getAbstractContacts()) {
-            account.addSubItem(SettingsManager.contactsShowMessages()
-                    ? ExtContactVO.convert(contact, this)
-                    : ContactVO.convert(contact, this));
+            account.addSubItem(getContactItem(contact, rosterAccount.getGroup()));
         }
         items.add(account);
     }
 
     private void createContactListWithGroups(List<IFlexible> items, boolean showEmptyGroups,
-                                             Map<String, GroupConfiguration> groups,
-                                             Comparator<AbstractContact> comparator) {
+                                             Map<String, GroupConfiguration> groups) {
         for (GroupConfiguration rosterConfiguration : groups.values()) {
             if (showEmptyGroups || !rosterConfiguration.isEmpty()) {
                 GroupVO group = GroupVO.convert(rosterConfiguration, false, this);
-                rosterConfiguration.sortAbstractContacts(comparator);
 
                 for (AbstractContact contact : rosterConfiguration.getAbstractContacts()) {
-                    group.addSubItem(SettingsManager.contactsShowMessages()
-                            ? ExtContactVO.convert(contact, this)
-                            : ContactVO.convert(contact, this));
+                    group.addSubItem(getContactItem(contact, rosterConfiguration.getGroup()));
                 }
                 items.add(group);
             }
         }
     }
 
-    private void createContactList(List<IFlexible> items, List<AbstractContact> contacts,
-                                   Comparator<AbstractContact> comparator) {
-        Collections.sort(contacts, comparator);
-        items.addAll(SettingsManager.contactsShowMessages()
-                ? ExtContactVO.convert(contacts, this)
-                : ContactVO.convert(contacts, this));
+    private void createContactList(List<IFlexible> items, List<AbstractContact> contacts) {
+        for (AbstractContact contact : contacts) {
+            items.add(getContactItem(contact, GroupManager.NO_GROUP));
+        }
     }
 
-    private ArrayList<AbstractContact> getSearchResults(Collection<RosterContact> rosterContacts,
-                                                        Comparator<AbstractContact> comparator,
-                                                        Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats) {
+    /**
+     * @return enabled roster contacts, rooms and active chats sorted for search.
+     */
+    private List<AbstractContact> getSearchContacts(Comparator<AbstractContact> comparator,
+                                                    Map<AccountJid, Map<UserJid, AbstractChat>> abstractChats) {
         final ArrayList<AbstractContact> baseEntities = new ArrayList<>();
+        hasContacts = false;
 
         // Build structure.
-        for (RosterContact rosterContact : rosterContacts) {
+        for (RosterContact rosterContact : getRosterContacts()) {
             if (!rosterContact.isEnabled()) {
                 continue;
             }
+            hasContacts = true;
             final AccountJid account = rosterContact.getAccount();
             final Map<UserJid, AbstractChat> users = abstractChats.get(account);
             if (users != null) {
                 users.remove(rosterContact.getUser());
             }
-            if (rosterContact.getName().toLowerCase(locale).contains(filterString)) {
-                baseEntities.add(rosterContact);
-            }
+            baseEntities.add(rosterContact);
         }
         for (Map<UserJid, AbstractChat> users : abstractChats.values()) {
             for (AbstractChat abstractChat : users.values()) {
@@ -565,9 +832,7 @@ public class ContactListPresenter implements OnContactChangedListener, OnAccount
                 } else {
                     abstractContact = new ChatContact(abstractChat);
                 }
-                if (abstractContact.getName().toLowerCase(locale).contains(filterString)) {
-                    baseEntities.add(abstractContact);
-                }
+                baseEntities.add(abstractContact);
             }
         }
         Collections.sort(baseEntities, comparator);
@@ -0,0 +1,138 @@
+package com.xabber.android.presentation.mvp.contactlist;
+
+import android.support.annotation.Nullable;
+
+import com.xabber.android.data.entity.AccountJid;
+import com.xabber.android.data.entity.NestedMap;
+import com.xabber.android.data.roster.AbstractContact;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Search index over contacts shown in the contact list.
+ * <p/>
+ * Keeps normalized search text (name and jid) of each contact, so typing
+ * doesn't convert names again. Query which contains the previous one is
+ * matched only against the previous results.
+ */
+class ContactSearchIndex {
+
+    private final Locale locale;
+
+    /**
+     * Normalized search text by account and user.
+     */
+    private final NestedMap<String> texts;
+
+    /**
+     * Contacts to be searched in the display order or <code>null</code> if they must be set.
+     */
+    @Nullable
+    private List<AbstractContact> contacts;
+
+    @Nullable
+    private String lastQuery;
+
+    @Nullable
+    private List<AbstractContact> lastResults;
+
+    ContactSearchIndex(Locale locale) {
+        this.locale = locale;
+        texts = new NestedMap<>();
+    }
+
+    /**
+     * @return whether contacts to be searched are set.
+     */
+    boolean hasContacts() {
+        return contacts != null;
+    }
+
+    /**
+     * @param contacts contacts to be searched sorted in the display order.
+     */
+    void setContacts(List<AbstractContact> contacts) {
+        this.contacts = contacts;
+        lastQuery = null;
+        lastResults = null;
+    }
+
+    /**
+     * Drops contacts to be searched, e.g. when roster or sort order was changed.
+     */
+    void invalidate() {
+        setContacts(null);
+    }
+
+    /**
+     * Drops search text of the changed contact and moves it to its place in the display order.
+     * Other contacts to be searched are kept.
+     *
+     * @return <code>false</code> if contact is not in contacts to be searched,
+     * so they must be set again.
+     */
+    boolean update(AbstractContact contact, Comparator<AbstractContact> comparator) {
+        texts.remove(contact.getAccount().toString(), contact.getUser().toString());
+        lastQuery = null;
+        lastResults = null;
+        if (contacts == null) {
+            return true;
+        }
+        if (!contacts.remove(contact)) {
+            return false;
+        }
+        int index = Collections.binarySearch(contacts, contact, comparator);
+        contacts.add(index < 0 ? -index - 1 : index, contact);
+        return true;
+    }
+
+    /**
+     * Drops search text of all contacts in the account.
+     */
+    void invalidate(AccountJid account) {
+        texts.clear(account.toString());
+        invalidate();
+    }
+
+    /**
+     * @param query lower case text to be found in contact name or jid.
+     * @return matching contacts in the display order.
+     */
+    List<AbstractContact> search(String query) {
+        List<AbstractContact> candidates;
+        if (lastQuery != null && lastResults != null && query.contains(lastQuery)) {
+            candidates = lastResults;
+        } else if (contacts != null) {
+            candidates = contacts;
+        } else {
+            return new ArrayList<>();
+        }
+
+        List<AbstractContact> results = new ArrayList<>();
+        for (AbstractContact contact : candidates) {
+            if (getText(contact).contains(query)) {
+                results.add(contact);
+            }
+        }
+
+        lastQuery = query;
+        lastResults = results;
+        return results;
+    }
+
+    private String getText(AbstractContact contact) {
+        String account = contact.getAccount().toString();
+        String user = contact.getUser().toString();
+        String text = texts.get(account, user);
+        if (text == null) {
+            text = (contact.getName() + "\n" + user).toLowerCase(locale);
+            texts.put(account, user, text);
+        }
+        return text;
+    }
+
+}
@@ -18,10 +18,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
-import com.xabber.android.data.entity.AccountJid;
-import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.cs.ChatStateManager;
-import com.xabber.android.data.intent.EntityIntentBuilder;
 
 /**
  * Receiver for scheduled pause of composing.
@@ -32,20 +29,11 @@ public class ComposingPausedReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        ChatStateManager.getInstance().onPaused(getAccount(intent), getUser(intent));
+        ChatStateManager.getInstance().onPauseAlarm();
     }
 
-    public static Intent createIntent(Context context, AccountJid account, UserJid user) {
-        return new EntityIntentBuilder(context, ComposingPausedReceiver.class)
-                .setAccount(account).setUser(user).build();
-    }
-
-    private static AccountJid getAccount(Intent intent) {
-        return EntityIntentBuilder.getAccount(intent);
-    }
-
-    private static UserJid getUser(Intent intent) {
-        return EntityIntentBuilder.getUser(intent);
+    public static Intent createIntent(Context context) {
+        return new Intent(context, ComposingPausedReceiver.class);
     }
 
 }
@@ -48,6 +48,7 @@ import com.xabber.android.data.entity.AccountJid;
 import com.xabber.android.data.entity.BaseEntity;
 import com.xabber.android.data.entity.UserJid;
 import com.xabber.android.data.extension.attention.AttentionManager;
+import com.xabber.android.data.extension.avatar.AvatarChangedEvent;
 import com.xabber.android.data.extension.blocking.BlockingManager;
 import com.xabber.android.data.extension.blocking.OnBlockedListChangedListener;
 import com.xabber.android.data.extension.file.FileUtils;
@@ -530,6 +531,14 @@ public class ChatActivity extends ManagedActivity implements OnContactChangedLis
         updateRecentChats();
     }
 
+    @Subscribe(threadMode = ThreadMode.MAIN)
+    public void onAvatarChangedEvent(AvatarChangedEvent event) {
+        if (event.getUser().equals(user)) {
+            updateToolbar();
+        }
+        updateRecentChats();
+    }
+
     @Override
     public void onContactsChanged(Collection<RosterContact> entities) {
         updateToolbar();
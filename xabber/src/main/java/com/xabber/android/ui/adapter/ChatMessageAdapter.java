@@ -65,6 +65,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import io.realm.OrderedCollectionChangeSet;
 import io.realm.Realm;
 import io.realm.RealmRecyclerViewAdapter;
 import io.realm.RealmResults;
@@ -451,8 +452,19 @@ public class ChatMessageAdapter extends RealmRecyclerViewAdapter<MessageItem, Ch
     }
 
     @Override
-    public void onChange() {
-        notifyDataSetChanged();
+    public void updateRealmResults(RealmResults<MessageItem> realmResults) {
+        super.updateRealmResults(realmResults);
+        prevItemCount = getItemCount();
+    }
+
+    @Override
+    public void onChange(@Nullable OrderedCollectionChangeSet changeSet) {
+        notifyChanges(changeSet);
+        if (changeSet != null && changeSet.getInsertions().length == 0
+                && changeSet.getDeletions().length == 0) {
+            // only state of messages was changed, positions are the same
+            return;
+        }
         listener.onMessagesUpdated();
         int itemCount = getItemCount();
         if (prevItemCount != itemCount) {
@@ -52,6 +52,13 @@ public class AccountConfiguration extends GroupConfiguration {
         groups.put(groupConfiguration.getGroup(), groupConfiguration);
     }
 
+    /**
+     * Removes group by name.
+     */
+    void removeGroupConfiguration(String group) {
+        groups.remove(group);
+    }
+
     /**
      * Returns sorted list of groups.
      */
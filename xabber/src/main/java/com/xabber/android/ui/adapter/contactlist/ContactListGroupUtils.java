@@ -9,6 +9,7 @@ import com.xabber.android.data.roster.ShowOfflineMode;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 
@@ -193,4 +194,105 @@ public class ContactListGroupUtils {
         return hasVisible;
     }
 
+    /**
+     * @return names of the groups contact is counted in by
+     * {@link #addContact(AbstractContact, boolean, Map, Map, List, boolean, boolean, boolean)}.
+     */
+    public static Collection<String> getGroupNames(AbstractContact abstractContact) {
+        Collection<? extends Group> abstractGroups = abstractContact.getGroups();
+        if (abstractGroups.size() == 0) {
+            abstractGroups = NO_GROUP_LIST;
+        }
+        List<String> names = new ArrayList<>(abstractGroups.size());
+        for (Group abstractGroup : abstractGroups) {
+            names.add(abstractGroup.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Removes contact added to the groups with specified names.
+     * Groups left without contacts are removed too.
+     *
+     * @param online whether contact was online when it was added.
+     */
+    public static void removeContact(AbstractContact abstractContact, Collection<String> groupNames,
+                                     boolean online, Map<AccountJid, AccountConfiguration> accounts,
+                                     Map<String, GroupConfiguration> groups, List<AbstractContact> contacts,
+                                     boolean showAccounts, boolean showGroups) {
+        if (showAccounts) {
+            final AccountConfiguration accountConfiguration = accounts.get(abstractContact.getAccount());
+            if (accountConfiguration == null) {
+                return;
+            }
+            if (showGroups) {
+                for (String name : groupNames) {
+                    GroupConfiguration groupConfiguration = accountConfiguration.getGroupConfiguration(name);
+                    if (groupConfiguration != null) {
+                        groupConfiguration.removeAbstractContact(abstractContact);
+                        groupConfiguration.decrement(online);
+                        if (groupConfiguration.getTotal() == 0) {
+                            accountConfiguration.removeGroupConfiguration(name);
+                        }
+                    }
+                }
+            } else {
+                accountConfiguration.removeAbstractContact(abstractContact);
+            }
+            accountConfiguration.decrement(online);
+        } else {
+            if (showGroups) {
+                for (String name : groupNames) {
+                    GroupConfiguration groupConfiguration = groups.get(name);
+                    if (groupConfiguration != null) {
+                        groupConfiguration.removeAbstractContact(abstractContact);
+                        groupConfiguration.decrement(online);
+                        if (groupConfiguration.getTotal() == 0) {
+                            groups.remove(name);
+                        }
+                    }
+                }
+            } else {
+                contacts.remove(abstractContact);
+            }
+        }
+    }
+
+    /**
+     * Moves just added contact to its place in sorted groups with specified names.
+     */
+    public static void sortContact(AbstractContact abstractContact, Collection<String> groupNames,
+                                   Map<AccountJid, AccountConfiguration> accounts,
+                                   Map<String, GroupConfiguration> groups, List<AbstractContact> contacts,
+                                   boolean showAccounts, boolean showGroups,
+                                   Comparator<AbstractContact> comparator) {
+        if (showAccounts) {
+            final AccountConfiguration accountConfiguration = accounts.get(abstractContact.getAccount());
+            if (accountConfiguration == null) {
+                return;
+            }
+            if (showGroups) {
+                for (String name : groupNames) {
+                    GroupConfiguration groupConfiguration = accountConfiguration.getGroupConfiguration(name);
+                    if (groupConfiguration != null) {
+                        groupConfiguration.sortAbstractContact(abstractContact, comparator);
+                    }
+                }
+            } else {
+                accountConfiguration.sortAbstractContact(abstractContact, comparator);
+            }
+        } else {
+            if (showGroups) {
+                for (String name : groupNames) {
+                    GroupConfiguration groupConfiguration = groups.get(name);
+                    if (groupConfiguration != null) {
+                        groupConfiguration.sortAbstractContact(abstractContact, comparator);
+                    }
+                }
+            } else if (contacts.remove(abstractContact)) {
+                GroupConfiguration.insertSorted(contacts, abstractContact, comparator);
+            }
+        }
+    }
+
 }
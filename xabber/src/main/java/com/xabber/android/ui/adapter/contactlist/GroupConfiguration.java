@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * Group representation in the contact list.
@@ -92,6 +93,39 @@ public class GroupConfiguration implements Comparable<GroupConfiguration> {
         abstractContacts.add(abstractContact);
     }
 
+    /**
+     * Removes contact from the list.
+     *
+     * @return whether contact was in the list.
+     */
+    public boolean removeAbstractContact(AbstractContact abstractContact) {
+        if (!abstractContacts.remove(abstractContact)) {
+            return false;
+        }
+        if (abstractContacts.isEmpty()) {
+            empty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Moves contact to its place in the list sorted with comparator.
+     */
+    public void sortAbstractContact(AbstractContact abstractContact, Comparator<AbstractContact> comparator) {
+        if (abstractContacts.remove(abstractContact)) {
+            insertSorted(abstractContacts, abstractContact, comparator);
+        }
+    }
+
+    /**
+     * Inserts contact to the list sorted with comparator.
+     */
+    static void insertSorted(List<AbstractContact> abstractContacts, AbstractContact abstractContact,
+                             Comparator<AbstractContact> comparator) {
+        int index = Collections.binarySearch(abstractContacts, abstractContact, comparator);
+        abstractContacts.add(index < 0 ? -index - 1 : index, abstractContact);
+    }
+
     /**
      * Gets list of contacts.
      *
@@ -119,6 +153,18 @@ public class GroupConfiguration implements Comparable<GroupConfiguration> {
         }
     }
 
+    /**
+     * Decrements number of contacts in group.
+     *
+     * @param online whether contact was online.
+     */
+    public void decrement(boolean online) {
+        this.total--;
+        if (online) {
+            this.online--;
+        }
+    }
+
     /**
      * @return Whether there is no one contact to be displayed in expanded mode.
      */
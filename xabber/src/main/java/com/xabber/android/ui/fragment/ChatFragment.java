@@ -278,6 +278,7 @@ public class ChatFragment extends Fragment implements PopupMenu.OnMenuItemClickL
                 super.onScrolled(recyclerView, dx, dy);
 
                 if (dy < 0) {
+                    loadOlderMessagesIfNeeded();
                     loadHistoryIfNeeded();
                 }
 
@@ -410,6 +411,12 @@ public class ChatFragment extends Fragment implements PopupMenu.OnMenuItemClickL
     public void onDestroy() {
         super.onDestroy();
         chatMessageAdapter.release();
+        if (account != null && user != null) {
+            AbstractChat chat = MessageManager.getInstance().getChat(account, user);
+            if (chat != null) {
+                chat.releaseMessages();
+            }
+        }
     }
 
     @Override
@@ -589,6 +596,41 @@ public class ChatFragment extends Fragment implements PopupMenu.OnMenuItemClickL
         ChatManager.getInstance().setScrollState(account, user, layoutManager.onSaveInstanceState());
     }
 
+    /**
+     * Extends loaded messages with older local ones when list is scrolled near to the top.
+     */
+    private void loadOlderMessagesIfNeeded() {
+        int visibleItemCount = layoutManager.getChildCount();
+        if (visibleItemCount == 0) {
+            return;
+        }
+
+        int firstVisibleItemPosition = layoutManager.findFirstVisibleItemPosition();
+        if (firstVisibleItemPosition == RecyclerView.NO_POSITION
+                || firstVisibleItemPosition > visibleItemCount * 2) {
+            return;
+        }
+
+        AbstractChat chat = getChat();
+        if (chat == null || chat.isAllMessagesLoaded()) {
+            return;
+        }
+
+        View firstVisibleView = layoutManager.findViewByPosition(firstVisibleItemPosition);
+        int offset = firstVisibleView == null ? 0 : firstVisibleView.getTop();
+        int prevItemCount = chatMessageAdapter.getItemCount();
+
+        RealmResults<MessageItem> olderMessages = chat.loadOlderMessages();
+        if (olderMessages == null) {
+            return;
+        }
+        messageItems = olderMessages;
+        chatMessageAdapter.updateRealmResults(messageItems);
+
+        int addedItemCount = chatMessageAdapter.getItemCount() - prevItemCount;
+        layoutManager.scrollToPositionWithOffset(firstVisibleItemPosition + addedItemCount, offset);
+    }
+
     private void loadHistoryIfNeeded() {
         AccountItem accountItem = AccountManager.getInstance().getAccount(this.account);
         if (accountItem == null) {
@@ -606,6 +648,11 @@ public class ChatFragment extends Fragment implements PopupMenu.OnMenuItemClickL
             return;
         }
 
+        AbstractChat chat = getChat();
+        if (chat != null && !chat.isAllMessagesLoaded()) {
+            return;
+        }
+
         int visibleItemCount = layoutManager.getChildCount();
 
         if (visibleItemCount == 0) {
@@ -684,7 +731,10 @@ public class ChatFragment extends Fragment implements PopupMenu.OnMenuItemClickL
 
     @Subscribe(threadMode = ThreadMode.MAIN)
     public void onEvent(MessageUpdateEvent event) {
-        chatMessageAdapter.onChange();
+        if ((event.getAccount() == null || event.getAccount().equals(account))
+                && (event.getUser() == null || event.getUser().equals(user))) {
+            chatMessageAdapter.onChange();
+        }
     }
 
     @Subscribe(threadMode = ThreadMode.MAIN)
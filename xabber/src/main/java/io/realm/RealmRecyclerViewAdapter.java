@@ -1,6 +1,7 @@
 package io.realm;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 
@@ -9,7 +10,7 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmObject, VH extends
     protected LayoutInflater inflater;
     protected RealmResults<T> realmResults;
     protected Context context;
-    private final RealmChangeListener listener;
+    private final OrderedRealmCollectionChangeListener<RealmResults<T>> listener;
 
     public RealmRecyclerViewAdapter(Context context, RealmResults<T> realmResults, boolean automaticUpdate) {
         if (context == null) {
@@ -18,10 +19,10 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmObject, VH extends
         this.context = context;
         this.realmResults = realmResults;
         this.inflater = LayoutInflater.from(context);
-        this.listener = (!automaticUpdate) ? null : new RealmChangeListener() {
+        this.listener = (!automaticUpdate) ? null : new OrderedRealmCollectionChangeListener<RealmResults<T>>() {
             @Override
-            public void onChange(Object element) {
-                RealmRecyclerViewAdapter.this.onChange();
+            public void onChange(RealmResults<T> collection, OrderedCollectionChangeSet changeSet) {
+                RealmRecyclerViewAdapter.this.onChange(changeSet);
             }
         };
 
@@ -30,8 +31,38 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmObject, VH extends
         }
     }
 
-    public void onChange() {
-        notifyDataSetChanged();
+    /**
+     * Called when results were changed.
+     *
+     * @param changeSet changed ranges calculated by Realm on its background thread,
+     *                  <code>null</code> for the first notification of asynchronous query.
+     */
+    public void onChange(@Nullable OrderedCollectionChangeSet changeSet) {
+        notifyChanges(changeSet);
+    }
+
+    /**
+     * Passes changed ranges to the RecyclerView, so only affected rows are rebound.
+     */
+    protected void notifyChanges(@Nullable OrderedCollectionChangeSet changeSet) {
+        if (changeSet == null) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        // Deletions are reported in indexes of the old results, so remove from the end.
+        OrderedCollectionChangeSet.Range[] deletions = changeSet.getDeletionRanges();
+        for (int i = deletions.length - 1; i >= 0; i--) {
+            notifyItemRangeRemoved(deletions[i].startIndex, deletions[i].length);
+        }
+
+        for (OrderedCollectionChangeSet.Range range : changeSet.getInsertionRanges()) {
+            notifyItemRangeInserted(range.startIndex, range.length);
+        }
+
+        for (OrderedCollectionChangeSet.Range range : changeSet.getChangeRanges()) {
+            notifyItemRangeChanged(range.startIndex, range.length);
+        }
     }
 
     public void release() {
@@ -40,6 +71,20 @@ public abstract class RealmRecyclerViewAdapter<T extends RealmObject, VH extends
         }
     }
 
+    /**
+     * Replaces data set of the adapter, moving change listener to the new results.
+     *
+     * @param realmResults new results.
+     */
+    public void updateRealmResults(RealmResults<T> realmResults) {
+        release();
+        this.realmResults = realmResults;
+        if (listener != null && realmResults != null && realmResults.isValid()) {
+            this.realmResults.addChangeListener(listener);
+        }
+        notifyDataSetChanged();
+    }
+
     /**
      * Returns how many items are in the data set.
      *
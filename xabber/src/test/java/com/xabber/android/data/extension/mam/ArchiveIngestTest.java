@@ -0,0 +1,273 @@
+package com.xabber.android.data.extension.mam;
+
+import com.xabber.android.data.database.messagerealm.MessageItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ingests fake archive the way catch-up does: pages are requested after the
+ * last archive id and stored through {@link PageWriterQueue}, skipping messages
+ * found in {@link StoredMessageIndex}.
+ */
+public class ArchiveIngestTest {
+
+    private static final int ARCHIVE_SIZE = 50000;
+
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Number of already received messages repeated at the start of each next page.
+     */
+    private static final int OVERLAP = 5;
+
+    private static final long START_TIME = 1500000000000L;
+
+    private static final long INTERVAL_MILLIS = 1000;
+
+    private ExecutorService writer;
+
+    private FakeArchive archive;
+
+    private FakeStore store;
+
+    /**
+     * Last archive id known to the loader.
+     */
+    private String lastMessageMamId;
+
+    @Before
+    public void setUp() {
+        // several threads, so pages are stored in order only thanks to the queue
+        writer = Executors.newFixedThreadPool(4);
+        archive = new FakeArchive(ARCHIVE_SIZE);
+        store = new FakeStore();
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void storesEveryMessageOnceInOrder() throws Exception {
+        for (int index = 0; index < 1000; index++) {
+            store.add(archive.getMessage(index));
+        }
+        store.lastMessageMamId = archive.getMamId(999);
+        // received online with a bit different time and without stanza id
+        for (int index = 20000; index < 20100; index++) {
+            MessageItem messageItem = archive.getMessage(index);
+            messageItem.setStanzaId(null);
+            messageItem.setTimestamp(messageItem.getTimestamp() + 2000);
+            store.add(messageItem);
+        }
+
+        long start = System.nanoTime();
+        assertTrue(ingest(store.lastMessageMamId));
+        long duration = System.nanoTime() - start;
+
+        assertEquals(ARCHIVE_SIZE, store.messages.size());
+        Set<String> texts = new HashSet<>();
+        for (MessageItem messageItem : store.messages) {
+            assertTrue(texts.add(messageItem.getText()));
+        }
+        int previous = -1;
+        for (int pageStart : store.pageStarts) {
+            assertTrue(pageStart > previous);
+            previous = pageStart;
+        }
+        assertEquals(archive.getMamId(ARCHIVE_SIZE - 1), store.lastMessageMamId);
+        assertEquals(store.lastMessageMamId, lastMessageMamId);
+
+        System.out.println("Ingested " + (ARCHIVE_SIZE - 1000) + " messages in "
+                + store.pageStarts.size() + " pages, "
+                + TimeUnit.NANOSECONDS.toMillis(duration) + " ms");
+    }
+
+    @Test
+    public void stopsAfterFailedPage() throws Exception {
+        store.failedPage = 10;
+
+        assertFalse(ingest(null));
+
+        int storedPages = 9;
+        int storedMessages = PAGE_SIZE + (storedPages - 1) * (PAGE_SIZE - OVERLAP);
+        assertEquals(storedPages, store.pageStarts.size());
+        assertEquals(storedMessages, store.messages.size());
+        assertEquals(archive.getMamId(storedMessages - 1), store.lastMessageMamId);
+
+        // next sync continues after the last stored page
+        store.failedPage = -1;
+        assertTrue(ingest(store.lastMessageMamId));
+        assertEquals(ARCHIVE_SIZE, store.messages.size());
+        assertEquals(archive.getMamId(ARCHIVE_SIZE - 1), store.lastMessageMamId);
+    }
+
+    @Test
+    public void emptyArchive() throws Exception {
+        archive = new FakeArchive(0);
+
+        assertTrue(ingest(null));
+
+        assertTrue(store.messages.isEmpty());
+        assertNull(store.lastMessageMamId);
+    }
+
+    /**
+     * Same loop as {@link MamManager} catch-up.
+     *
+     * @return whether all requested pages were stored.
+     */
+    private boolean ingest(String lastMessageMamId) throws InterruptedException {
+        this.lastMessageMamId = lastMessageMamId;
+        PageWriterQueue pages = new PageWriterQueue(writer);
+        Page page;
+        do {
+            page = archive.pageAfter(this.lastMessageMamId, PAGE_SIZE);
+            if (page.lastMessageMamId == null) {
+                break;
+            }
+            if (!pages.submit(store.storePage(page))) {
+                break;
+            }
+            this.lastMessageMamId = page.lastMessageMamId;
+        } while (page.messages.size() == PAGE_SIZE && !page.complete);
+        return pages.await();
+    }
+
+    private static class Page {
+
+        final int start;
+
+        final List<MessageItem> messages;
+
+        final String lastMessageMamId;
+
+        final boolean complete;
+
+        Page(int start, List<MessageItem> messages, String lastMessageMamId, boolean complete) {
+            this.start = start;
+            this.messages = messages;
+            this.lastMessageMamId = lastMessageMamId;
+            this.complete = complete;
+        }
+    }
+
+    private static class FakeArchive {
+
+        private final int size;
+
+        FakeArchive(int size) {
+            this.size = size;
+        }
+
+        String getMamId(int index) {
+            return "mam-" + index;
+        }
+
+        /**
+         * @return new instance of the message, as it is parsed again from each response.
+         */
+        MessageItem getMessage(int index) {
+            MessageItem messageItem = new MessageItem();
+            messageItem.setStanzaId("stanza-" + index);
+            messageItem.setText("message " + index);
+            messageItem.setTimestamp(START_TIME + index * INTERVAL_MILLIS);
+            return messageItem;
+        }
+
+        Page pageAfter(String mamId, int max) {
+            int start = mamId == null ? 0
+                    : Math.max(0, Integer.parseInt(mamId.substring("mam-".length())) + 1 - OVERLAP);
+            int end = Math.min(size, start + max);
+            List<MessageItem> messages = new ArrayList<>(end - start);
+            for (int index = start; index < end; index++) {
+                messages.add(getMessage(index));
+            }
+            return new Page(start, messages, end > start ? getMamId(end - 1) : null, end == size);
+        }
+    }
+
+    private static class FakeStore {
+
+        final List<MessageItem> messages = new ArrayList<>();
+
+        final TreeMap<Long, List<MessageItem>> messagesByTime = new TreeMap<>();
+
+        final List<Integer> pageStarts = new ArrayList<>();
+
+        String lastMessageMamId;
+
+        /**
+         * Number of the page to fail, starting from 1.
+         */
+        int failedPage = -1;
+
+        void add(MessageItem messageItem) {
+            messages.add(messageItem);
+            List<MessageItem> sameTime = messagesByTime.get(messageItem.getTimestamp());
+            if (sameTime == null) {
+                sameTime = new ArrayList<>(1);
+                messagesByTime.put(messageItem.getTimestamp(), sameTime);
+            }
+            sameTime.add(messageItem);
+        }
+
+        Callable<Boolean> storePage(final Page page) {
+            return new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return store(page);
+                }
+            };
+        }
+
+        /**
+         * Stores new messages and archive id of the page, as one transaction.
+         */
+        synchronized boolean store(Page page) {
+            if (pageStarts.size() + 1 == failedPage) {
+                throw new IllegalStateException("Transaction failed");
+            }
+
+            long start = page.messages.get(0).getTimestamp() - StoredMessageIndex.SIMILAR_TIME_MILLIS;
+            long end = page.messages.get(page.messages.size() - 1).getTimestamp()
+                    + StoredMessageIndex.SIMILAR_TIME_MILLIS;
+            StoredMessageIndex index = new StoredMessageIndex();
+            for (Map.Entry<Long, List<MessageItem>> entry
+                    : messagesByTime.subMap(start, true, end, true).entrySet()) {
+                for (MessageItem messageItem : entry.getValue()) {
+                    index.add(messageItem);
+                }
+            }
+
+            for (MessageItem messageItem : page.messages) {
+                if (!index.contains(messageItem)) {
+                    add(messageItem);
+                }
+            }
+            lastMessageMamId = page.lastMessageMamId;
+            pageStarts.add(page.start);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.xabber.android.data.message;
+
+import com.xabber.android.data.entity.NestedMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Compares lookup of the receiving chat by account and user keys, as
+ * {@link MessageManager} does, with offering stanza to every chat of the account.
+ */
+public class ChatLookupTest {
+
+    private static final int ACCOUNTS = 3;
+
+    private static final int CHATS_PER_ACCOUNT = 2000;
+
+    private static final int STANZAS = 20000;
+
+    private NestedMap<FakeChat> chats;
+
+    @Before
+    public void setUp() {
+        chats = new NestedMap<>();
+        for (int account = 0; account < ACCOUNTS; account++) {
+            for (int user = 0; user < CHATS_PER_ACCOUNT; user++) {
+                FakeChat chat = new FakeChat(getUser(user));
+                chats.put(getAccount(account), chat.user, chat);
+            }
+        }
+    }
+
+    @Test
+    public void findsSameChatAsScan() {
+        String account = getAccount(1);
+        for (int user = 0; user < CHATS_PER_ACCOUNT; user += 97) {
+            assertSame(scan(account, getUser(user)), chats.get(account, getUser(user)));
+        }
+        assertNull(chats.get(account, "stranger@example.com"));
+        assertNull(scan(account, "stranger@example.com"));
+        assertNull(chats.get("unknown@example.com", getUser(0)));
+    }
+
+    @Test
+    public void lookupBenchmark() {
+        String account = getAccount(2);
+
+        long start = System.nanoTime();
+        int found = 0;
+        for (int stanza = 0; stanza < STANZAS; stanza++) {
+            if (chats.get(account, getUser(stanza % CHATS_PER_ACCOUNT)) != null) {
+                found++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int stanza = 0; stanza < STANZAS; stanza++) {
+            if (scan(account, getUser(stanza % CHATS_PER_ACCOUNT)) != null) {
+                found++;
+            }
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        System.out.println("Dispatched " + found + " stanzas to " + CHATS_PER_ACCOUNT
+                + " chats: lookup " + TimeUnit.NANOSECONDS.toMillis(lookupNanos)
+                + " ms, scan " + TimeUnit.NANOSECONDS.toMillis(scanNanos) + " ms");
+    }
+
+    /**
+     * Offers stanza to every chat of the account until one accepts it.
+     */
+    private FakeChat scan(String account, String user) {
+        for (FakeChat chat : chats.getNested(account).values()) {
+            if (chat.accepts(user)) {
+                return chat;
+            }
+        }
+        return null;
+    }
+
+    private static String getAccount(int index) {
+        return "account" + index + "@example.com";
+    }
+
+    private static String getUser(int index) {
+        return "user" + index + "@example.com";
+    }
+
+    private static class FakeChat {
+
+        final String user;
+
+        FakeChat(String user) {
+            this.user = user;
+        }
+
+        /**
+         * Chat accepts stanzas from its own bare jid only.
+         */
+        boolean accepts(String from) {
+            return user.equals(from);
+        }
+    }
+
+}